@@ -0,0 +1,41 @@
+package edu.yale.library.marc4jextract.benchmarks;
+
+import edu.yale.library.marc4jextract.Extractor;
+import edu.yale.library.marc4jextract.InvalidSpecException;
+import edu.yale.library.marc4jextract.ScriptInclusion;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single extractions through the static Extractor.extract helpers, which look up the spec's compiled plan in
+ * the cache of recently used specs on every call rather than compiling it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtractorBenchmark {
+
+    @Param({"245abnps", "100abcdegqu:110abcdegnu:111acdegjnqu", "6XXabcdvxyz", "008[35-37]:041a"})
+    public String spec;
+
+    private List<Record> records;
+
+    @Setup
+    public void setup() {
+        records = TestRecords.load();
+    }
+
+    @Benchmark
+    public void extract(Blackhole blackhole) throws InvalidSpecException {
+        for (Record record : records) {
+            blackhole.consume(Extractor.extract(record, spec, ScriptInclusion.BOTH, true, null, " "));
+        }
+    }
+}
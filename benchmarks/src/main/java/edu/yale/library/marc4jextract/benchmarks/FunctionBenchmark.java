@@ -0,0 +1,45 @@
+package edu.yale.library.marc4jextract.benchmarks;
+
+import edu.yale.library.marc4jextract.InvalidSpecException;
+import edu.yale.library.marc4jextract.JsonExtractionSpec;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each function in FunctionMap, run through a specification with a single extractor.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FunctionBenchmark {
+
+    @Param({"sortTitleExtractor", "languageMap", "dateExtractor", "sortAuthorExtractor", "subjectHeadingExtractor"})
+    public String extractFunction;
+
+    private List<Record> records;
+    private JsonExtractionSpec jsonExtractionSpec;
+
+    @Setup
+    public void setup() throws InvalidSpecException {
+        records = TestRecords.load();
+        // the language map works on the values extracted by the field spec
+        String fieldSpec = extractFunction.equals("languageMap") ? "\"fieldSpec\": \"008[35-37]:041a\", " : "";
+        jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors("[{\"name\": \"value\", " + fieldSpec +
+                "\"trimPunctuation\": false, \"extractFunction\": \"" + extractFunction + "\"}]");
+    }
+
+    @Benchmark
+    public void extractValues(Blackhole blackhole) {
+        for (Record record : records) {
+            blackhole.consume(jsonExtractionSpec.extractValues(record));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package edu.yale.library.marc4jextract.benchmarks;
+
+import edu.yale.library.marc4jextract.ExtractionResult;
+import edu.yale.library.marc4jextract.InvalidSpecException;
+import edu.yale.library.marc4jextract.JsonExtractionSpec;
+import org.marc4j.MarcJsonReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcXmlReader;
+import org.marc4j.marc.Record;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of all test records with a loaded JSON specification.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonExtractionSpecBenchmark {
+
+    @Param({"test", "full"})
+    public String specification;
+
+    private List<Record> records;
+    private byte[] recordBytes;
+    private byte[] recordXml;
+    private byte[] recordJson;
+    private JsonExtractionSpec jsonExtractionSpec;
+    private ExtractionResult result;
+
+    @Setup
+    public void setup() throws InvalidSpecException, IOException {
+        records = TestRecords.load();
+        recordBytes = TestRecords.loadBytes();
+        recordXml = TestRecords.loadXml();
+        recordJson = TestRecords.loadJson();
+        jsonExtractionSpec = new JsonExtractionSpec();
+        // the full specification uses every extractor function as well as plain field specs
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-" + specification + ".json"));
+        result = jsonExtractionSpec.newResult();
+    }
+
+    @Benchmark
+    public void extractValues(Blackhole blackhole) {
+        for (Record record : records) {
+            blackhole.consume(jsonExtractionSpec.extractValues(record));
+        }
+    }
+
+    @Benchmark
+    public void extractValuesIntoResult(Blackhole blackhole) {
+        for (Record record : records) {
+            jsonExtractionSpec.extractValues(record, result);
+            blackhole.consume(result);
+        }
+    }
+
+    @Benchmark
+    public void readAndExtract(Blackhole blackhole) {
+        jsonExtractionSpec.extractAll(new MarcStreamReader(new ByteArrayInputStream(recordBytes)),
+                (record, values) -> blackhole.consume(values));
+    }
+
+    @Benchmark
+    public void extractRaw(Blackhole blackhole) throws IOException {
+        jsonExtractionSpec.extractAll(new ByteArrayInputStream(recordBytes),
+                (record, values) -> blackhole.consume(values));
+    }
+
+    @Benchmark
+    public void readAndExtractXml(Blackhole blackhole) {
+        jsonExtractionSpec.extractAll(new MarcXmlReader(new ByteArrayInputStream(recordXml)),
+                (record, values) -> blackhole.consume(values));
+    }
+
+    @Benchmark
+    public void extractXml(Blackhole blackhole) {
+        jsonExtractionSpec.extractAllXml(new ByteArrayInputStream(recordXml),
+                (record, values) -> blackhole.consume(values));
+    }
+
+    @Benchmark
+    public void readAndExtractJson(Blackhole blackhole) {
+        jsonExtractionSpec.extractAll(new MarcJsonReader(new ByteArrayInputStream(recordJson)),
+                (record, values) -> blackhole.consume(values));
+    }
+
+    @Benchmark
+    public void extractJson(Blackhole blackhole) throws IOException {
+        jsonExtractionSpec.extractAllJson(new ByteArrayInputStream(recordJson),
+                (record, values) -> blackhole.consume(values));
+    }
+}
@@ -0,0 +1,39 @@
+package edu.yale.library.marc4jextract.benchmarks;
+
+import edu.yale.library.marc4jextract.StringFormatter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StringFormatterBenchmark {
+
+    // typical extracted values: most need nothing trimmed, the rest end in ISBD punctuation
+    private static final String[] VALUES = {
+            "Manufacturing consent :",
+            "the political economy of the mass media /",
+            "Herman, Edward S.",
+            "New York :",
+            "Pantheon Books,",
+            "2002.",
+            "[henshū Yasukuni Jinja Shamusho].",
+            "Yasukuni Jinja (Tokyo, Japan)",
+            "Mass media",
+            "Author Jr.",
+            "xii, 412 p. ;",
+            "24 cm."
+    };
+
+    @Benchmark
+    public void trimPunctuation(Blackhole blackhole) {
+        for (String value : VALUES) {
+            blackhole.consume(StringFormatter.trimPunctuation(value));
+        }
+    }
+}
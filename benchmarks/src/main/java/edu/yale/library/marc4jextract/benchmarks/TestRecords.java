@@ -0,0 +1,77 @@
+package edu.yale.library.marc4jextract.benchmarks;
+
+import org.marc4j.MarcJsonWriter;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcXmlWriter;
+import org.marc4j.marc.Record;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the test records shared by the benchmarks.
+ */
+class TestRecords {
+
+    private static final String[] RECORD_FILES = {
+            "/11040744.mrc",
+            "/11749433.mrc",
+            "/12532681.marc",
+            "/15572040.marc",
+            "/15593592.marc",
+            "/55580.marc",
+            "/558505.marc",
+            "/manufacturing_consent.marc"
+    };
+
+    static List<Record> load() {
+        List<Record> records = new ArrayList<>();
+        for (String file : RECORD_FILES) {
+            MarcReader reader = new MarcStreamReader(TestRecords.class.getResourceAsStream(file));
+            while (reader.hasNext()) {
+                records.add(reader.next());
+            }
+        }
+        return records;
+    }
+
+    // all the test records as one ISO 2709 stream
+    static byte[] loadBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (String file : RECORD_FILES) {
+            try (InputStream in = TestRecords.class.getResourceAsStream(file)) {
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // all the test records as one MARCXML collection
+    static byte[] loadXml() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MarcXmlWriter writer = new MarcXmlWriter(out, true);
+        for (Record record : load()) {
+            writer.write(record);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    // all the test records as MARC-in-JSON, one after another
+    static byte[] loadJson() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MarcJsonWriter writer = new MarcJsonWriter(out, MarcJsonWriter.MARC_IN_JSON);
+        for (Record record : load()) {
+            writer.write(record);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+}
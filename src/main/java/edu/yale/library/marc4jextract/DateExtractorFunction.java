@@ -1,79 +1,76 @@
 package edu.yale.library.marc4jextract;
 
-import org.apache.commons.lang3.StringUtils;
 import org.marc4j.marc.ControlField;
 import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
 import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Extracts the publication date from the dates in 008, or from 264$c or 260$c when 008 has none.
+ * The value is a year, or a range of years like "1990/1999".  getDateRange gives the same years as ints.
+ *
+ * The dates are parsed a character at a time, without regexes or intermediate strings.
+ */
 public class DateExtractorFunction implements ExtractorFunction {
 
-    private static Pattern threeToFourDigitPattern = Pattern.compile("\\b([\\dx]{3,4})\\b");
-    private static Pattern twoThreeDigitQuestionablePattern = Pattern.compile("\\b([\\d]{3}[\\-?u|])");
+    /**
+     * A range of years.  A single year starts and ends in the same year.
+     */
+    public static class DateRange {
+        private final int start;
+        private final int end;
+        // a continuing resource without an end date, which ends in 9999 and always shows it
+        private final boolean openEnded;
 
-    @Override
-    public void extractValues(RecordExtractor recordExtractor, List<String> values) {
-        ControlField tagField = recordExtractor.controlFields.get("008");
-        if (tagField == null) return;
-        String value = tagField.getData();
-        String date1Str = "";
-        String date2Str = "";
-        int date1 = 0;
-        int date2 = 0;
-        String dataStructure = null;
-        String dateType = value.substring(6, 7);
-
-        if (value.length() >= 11 && value.substring(7, 11).length() > 0) {
-            if (!value.substring(7, 11).contains("#") && !value.substring(7, 11).equals("||||")) {
-                date1Str = value.substring(7, 11);
-                date1Str = date1Str.contains("|") ? date1Str.replaceAll("\\|", "u") : date1Str;
-            }
-            if (value.length() > 15) {
-                if (!value.substring(11, 15).contains("#") && !value.substring(11, 15).equals("||||")) {
-                    date2Str = value.substring(11, 15);
-                    date2Str = date2Str.contains("|") ? date2Str.replaceAll("\\|", "u") : date2Str;
-                }
-            }
+        DateRange(int start, int end) {
+            this(start, end, false);
+        }
 
-            switch (dateType) {
-                case "q":
-                case "c":
-                case "d":
-                case "u":
-                case "m":
-                case "k":
-                case "i":
-                    date1 = getDateReplace(date1Str, "u", "0");
-                    date2 = getDateReplace(date2Str, "u", "9");
-                    break;
-                case "p":
-                case "r":
-                case "s":
-                case "e":
-                case "t":
-                    date1 = getDateReplace(date1Str, "u", "0");
-                    date2 = getDateReplace(date1Str, "u", "9");
-                    break;
-                default:
-                    date1 = date2 = 0;
-                    break;
-            }
-            if (date1 != 0) {
-                dataStructure = dateComparison(date1, date2, dateType);
-            }
+        private DateRange(int start, int end, boolean openEnded) {
+            this.start = start;
+            this.end = end;
+            this.openEnded = openEnded;
         }
-        if (dataStructure == null || dataStructure.isEmpty()) {
-            dataStructure = get264260Date(recordExtractor, values, dateType);
+
+        public int getStart() {
+            return start;
         }
-        if (dataStructure != null && !dataStructure.isEmpty()) {
-            values.add(dataStructure);
+
+        public int getEnd() {
+            return end;
+        }
+
+        /**
+         * The year, or the years separated by a slash, as extracted.
+         */
+        @Override
+        public String toString() {
+            return start == end && !openEnded ? Integer.toString(start) : start + "/" + end;
         }
     }
 
+    @Override
+    public void extractValues(RecordExtractor recordExtractor, List<String> values) {
+        DateRange dateRange = getDateRange(recordExtractor.getControlField("008"),
+                recordExtractor.getDataFields("264"), recordExtractor.getDataFields("260"));
+        if (dateRange != null) {
+            values.add(dateRange.toString());
+        }
+    }
+
+    /**
+     * The date range of the record, or null if it has no date.
+     */
+    public static DateRange getDateRange(Record record) {
+        return getDateRange((ControlField) record.getVariableField("008"),
+                dataFields(record, "264"), dataFields(record, "260"));
+    }
+
     @Override
     public List<String> getDependentFields() {
         return Arrays.asList("264", "260");
@@ -84,106 +81,220 @@ public class DateExtractorFunction implements ExtractorFunction {
         return true;
     }
 
-    private int safeStrToInt(String number) {
-        if ( StringUtils.isEmpty(number) ) return 0;
-        try {
-            return Integer.parseInt(number.trim());
-        } catch (Exception e ) {
-            return 0;
+    private static List<DataField> dataFields(Record record, String tag) {
+        List<DataField> fields = new ArrayList<>();
+        for (VariableField field : record.getVariableFields(tag)) {
+            fields.add((DataField) field);
         }
+        return fields;
     }
 
-    private int getDateReplace(String dateStr, String charc, String num) {
-        dateStr = dateStr.contains(charc) ? dateStr.replaceAll(charc, num) : dateStr;
-        int date = safeStrToInt(dateStr);
-        return date;
+    private static DateRange getDateRange(ControlField tagField, List<DataField> fields264, List<DataField> fields260) {
+        if (tagField == null) return null;
+        String value = tagField.getData();
+        char dateType = value.length() > 6 ? value.charAt(6) : 0;
+        DateRange dateRange = null;
+
+        if (value.length() >= 11) {
+            // a date with a # or of only |s is missing, and a | is read as a u
+            boolean hasDate1 = isDate(value, 7);
+            boolean hasDate2 = value.length() > 15 && isDate(value, 11);
+            int date1;
+            int date2;
+            switch (dateType) {
+                case 'q':
+                case 'c':
+                case 'd':
+                case 'u':
+                case 'm':
+                case 'k':
+                case 'i':
+                    date1 = hasDate1 ? parseYear(value, 7, 11, '0') : 0;
+                    date2 = hasDate2 ? parseYear(value, 11, 15, '9') : 0;
+                    break;
+                case 'p':
+                case 'r':
+                case 's':
+                case 'e':
+                case 't':
+                    date1 = hasDate1 ? parseYear(value, 7, 11, '0') : 0;
+                    date2 = hasDate1 ? parseYear(value, 7, 11, '9') : 0;
+                    break;
+                default:
+                    date1 = date2 = 0;
+                    break;
+            }
+            dateRange = dateComparison(date1, date2, dateType);
+        }
+        if (dateRange == null && fields264 != null) {
+            dateRange = getDateFromDataFields(dateType, fields264);
+        }
+        if (dateRange == null && fields260 != null) {
+            dateRange = getDateFromDataFields(dateType, fields260);
+        }
+        return dateRange;
     }
 
-    private String getDateFromDataFields(String dateType,List<DataField> fields) {
+    private static boolean isDate(String value, int start) {
+        boolean allBars = true;
+        for (int i = start; i < start + 4; i++) {
+            char c = value.charAt(i);
+            if (c == '#') {
+                return false;
+            }
+            allBars = allBars && c == '|';
+        }
+        return !allBars;
+    }
+
+    private static DateRange getDateFromDataFields(char dateType, List<DataField> fields) {
+        boolean singleDateType = isSingleDateType(dateType);
+        // the years carry over to the next field when it has none
         int yearStart = 0;
         int yearEnd = 0;
-        String dates = null;
-        String date = "";
+        DateRange dates = null;
+        char[] date = new char[0];
         for (DataField field : fields) {
             Subfield subfield = field.getSubfield('c');
             if (subfield == null) continue;
-            date = subfield.getData();
-            if (!StringUtils.isEmpty(date)) {
-                Matcher questionable = twoThreeDigitQuestionablePattern.matcher(date);
-                StringBuffer dateOut = new StringBuffer();
+            String data = subfield.getData();
+            if (data == null || data.isEmpty()) continue;
+            if (date.length < data.length()) {
+                date = new char[data.length()];
+            }
+            int length = data.length();
+            markQuestionableYears(data, date);
 
-                while (questionable.find()) {
-                    questionable.appendReplacement(dateOut, questionable.group(0).replace('|', 'x').replace('?', 'x').replace('-','x').replace('u','x'));
+            boolean first = true;
+            int i = 0;
+            while (i < length) {
+                int yearLength = yearLength(date, length, i);
+                if (yearLength == 0) {
+                    i++;
+                    continue;
                 }
-                questionable.appendTail(dateOut);
-                date = dateOut.toString();
-                Matcher m = threeToFourDigitPattern.matcher(date);
-                String yearStartStr = null;
-                String yearEndStr = null;
-
-                if (m.find()) {
-                    yearStartStr = m.group(0);
-                    yearStart = getDateReplace(yearStartStr, "x","0");
-
-                    if (dateType.equalsIgnoreCase("t") || dateType.equalsIgnoreCase("p") || dateType.equalsIgnoreCase("r") || dateType.equalsIgnoreCase("s") || dateType.equalsIgnoreCase("e")) {
-                        yearEnd = getDateReplace(yearStartStr, "x","9");
+                if (first) {
+                    yearStart = parseYear(date, i, i + yearLength, '0');
+                    if (singleDateType) {
+                        yearEnd = parseYear(date, i, i + yearLength, '9');
                     }
+                    first = false;
+                } else if (!singleDateType) {
+                    yearEnd = parseYear(date, i, i + yearLength, '9');
                 }
-                while (m.find()) {
-                    if (!dateType.equalsIgnoreCase("t") && !dateType.equalsIgnoreCase("p") && !dateType.equalsIgnoreCase("r") && !dateType.equalsIgnoreCase("s") && !dateType.equalsIgnoreCase("e")) {
-                        yearEndStr = m.group(0);
-                        yearEnd = getDateReplace(yearEndStr, "x","9");
-                    }
-                }
-                dates = dateComparison(yearStart, yearEnd, dateType);
-                if (dates != null && !dates.isEmpty()) break;
+                i += yearLength;
             }
+            dates = dateComparison(yearStart, yearEnd, dateType);
+            if (dates != null) break;
         }
         return dates;
     }
 
-    private String get264260Date(RecordExtractor recordExtractor, List<String> values, String dateType) {
+    // Copies the date, replacing the last character of questionable years like 199- or 199? with an x.
+    private static void markQuestionableYears(String data, char[] date) {
+        int length = data.length();
+        data.getChars(0, length, date, 0);
+        int i = 0;
+        while (i + 3 < length) {
+            if ((i == 0 || !isWordChar(data.charAt(i - 1))) && isDigit(data.charAt(i)) && isDigit(data.charAt(i + 1))
+                    && isDigit(data.charAt(i + 2)) && "-?u|".indexOf(data.charAt(i + 3)) >= 0) {
+                date[i + 3] = 'x';
+                i += 4;
+            } else {
+                i++;
+            }
+        }
+    }
 
-        List<DataField> fields264c = recordExtractor.dataFields.get("264");
-        String foundDate = null;
-        if (fields264c != null) {
-            foundDate = getDateFromDataFields(dateType,fields264c);
+    // The length of the three or four digit year, possibly with x for unknown digits, that is a word at i, or 0.
+    private static int yearLength(char[] date, int length, int i) {
+        if (i > 0 && isWordChar(date[i - 1])) {
+            return 0;
         }
-        if (foundDate == null || foundDate.isEmpty()) {
-            List<DataField> fields260c = recordExtractor.dataFields.get("260");
-            if (fields260c !=null) {
-                foundDate = getDateFromDataFields(dateType, fields260c);
-            }
+        int end = i;
+        while (end < length && end - i < 5 && (isDigit(date[end]) || date[end] == 'x')) {
+            end++;
         }
-        return foundDate;
+        int yearLength = end - i;
+        if ((yearLength == 3 || yearLength == 4) && (end == length || !isWordChar(date[end]))) {
+            return yearLength;
+        }
+        return 0;
+    }
+
+    // Parses the year in s[start, end) as Integer.parseInt would, with u and | standing for the unknownDigit,
+    // or returns 0 if it isn't a number.
+    private static int parseYear(String s, int start, int end, char unknownDigit) {
+        while (start < end && s.charAt(start) <= ' ') start++;
+        while (end > start && s.charAt(end - 1) <= ' ') end--;
+        if (start == end) return 0;
+        boolean negative = false;
+        char c = s.charAt(start);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++start == end) return 0;
+        }
+        int year = 0;
+        for (int i = start; i < end; i++) {
+            c = s.charAt(i);
+            int digit = Character.digit(c == 'u' || c == '|' ? unknownDigit : c, 10);
+            if (digit < 0) return 0;
+            year = year * 10 + digit;
+        }
+        return negative ? -year : year;
     }
 
-    private String  dateComparison (int date1, int date2, String dateType) {
-        String dates = null;
+    // Parses a year of digits and x for unknown digits found by yearLength.
+    private static int parseYear(char[] s, int start, int end, char unknownDigit) {
+        int year = 0;
+        for (int i = start; i < end; i++) {
+            year = year * 10 + ((s[i] == 'x' ? unknownDigit : s[i]) - '0');
+        }
+        return year;
+    }
+
+    private static boolean isSingleDateType(char dateType) {
+        switch (Character.toLowerCase(dateType)) {
+            case 't':
+            case 'p':
+            case 'r':
+            case 's':
+            case 'e':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // the characters regex word boundaries treat as part of a word
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static DateRange dateComparison(int date1, int date2, char dateType) {
+        DateRange dates = null;
         if (date1 != 0) {
-            if (dateType.equalsIgnoreCase("q")) {
+            char type = Character.toLowerCase(dateType);
+            if (type == 'q') {
                 if (date2 == 0) {
-                    dates = "" + date1;
+                    dates = new DateRange(date1, date1);
                 } else if (date2 >= date1 && (date2 - date1) <= 200) {
-                    if (date2 == date1 ) {
-                        dates ="" + date1;
-                    } else {
-                        dates = date1 + "/" + date2;
-                    }
+                    dates = new DateRange(date1, date2);
                 }
             } else {
                 if (date2 > date1) {
-                    dates = date1 + "/" + date2;
-                } else if (date2 == 0 && dateType.equalsIgnoreCase("c")) {
-                    date2 = 9999;
-                    dates = date1 + "/" + date2;
-                }   else
-                 {
-                     dates = ""+ date1;
+                    dates = new DateRange(date1, date2);
+                } else if (date2 == 0 && type == 'c') {
+                    dates = new DateRange(date1, 9999, true);
+                } else {
+                    dates = new DateRange(date1, date1);
                 }
             }
         }
         return dates;
     }
-
 }
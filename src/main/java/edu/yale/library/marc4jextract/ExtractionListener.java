@@ -0,0 +1,11 @@
+package edu.yale.library.marc4jextract;
+
+/**
+ * Told about each extractor run on each record.
+ *
+ * It is called on the thread doing the extraction, so a listener used with the multi-threaded
+ * extractAll methods must be thread safe.
+ */
+public interface ExtractionListener {
+    void extracted(String extractorName, long nanos, int valueCount);
+}
@@ -0,0 +1,222 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.marc.Record;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Extracts records in three stages connected by bounded queues: a reader thread, extraction workers, and the
+ * sink on the calling thread, so reading (and decompressing), parsing, extraction and writing all overlap.
+ *
+ * Records are handed between the stages in batches.  The number of batches between the reader and the sink is
+ * bounded, so a slow sink holds back the reader rather than filling memory.  On Java 21 and later the reader and
+ * workers are virtual threads, otherwise daemon platform threads.
+ */
+class ExtractionPipeline {
+
+    private static final int BATCH_SIZE = 100;
+    private static final int BATCHES_IN_FLIGHT_PER_WORKER = 4;
+
+    /**
+     * The reader stage's input.
+     */
+    interface Source<T> {
+        // the next item, or null at the end
+        T next() throws IOException;
+    }
+
+    private final JsonExtractionSpec spec;
+    private final int workers;
+    private final boolean ordered;
+    private final ThreadFactory threadFactory = newThreadFactory();
+
+    ExtractionPipeline(JsonExtractionSpec spec, int workers, boolean ordered) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        this.spec = spec;
+        this.workers = workers;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Reads the source's items on the reader thread and has the workers turn them into records with a decoder
+     * from the supplier, one decoder per worker, and extract them.
+     */
+    <T> void run(Source<T> source, Supplier<Function<T, Record>> decoders, ResultSink sink) throws IOException, InterruptedException {
+        int maxInFlight = workers * BATCHES_IN_FLIGHT_PER_WORKER;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        // room for every batch in flight plus the end markers, so putting never blocks
+        BlockingQueue<Batch<T>> toExtract = new ArrayBlockingQueue<>(maxInFlight + 1);
+        BlockingQueue<Batch<T>> toWrite = new ArrayBlockingQueue<>(maxInFlight + workers + 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        try {
+            threads.add(start(() -> read(source, inFlight, toExtract), failure, toWrite));
+            for (int i = 0; i < workers; i++) {
+                threads.add(start(() -> extract(decoders.get(), toExtract, toWrite), failure, toWrite));
+            }
+            write(sink, inFlight, toWrite, failure);
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private <T> void read(Source<T> source, Semaphore inFlight, BlockingQueue<Batch<T>> toExtract) throws IOException, InterruptedException {
+        long sequence = 0;
+        T item = source.next();
+        while (item != null) {
+            inFlight.acquire();
+            Batch<T> batch = new Batch<>(sequence++);
+            while (item != null && batch.items.size() < BATCH_SIZE) {
+                batch.items.add(item);
+                item = source.next();
+            }
+            toExtract.put(batch);
+        }
+        toExtract.put(Batch.end());
+    }
+
+    private <T> void extract(Function<T, Record> decoder, BlockingQueue<Batch<T>> toExtract, BlockingQueue<Batch<T>> toWrite) throws InterruptedException {
+        Batch<T> batch;
+        while (!(batch = toExtract.take()).isEnd()) {
+            for (T item : batch.items) {
+                Record record = decoder.apply(item);
+                batch.records.add(record);
+                batch.values.add(spec.extractValues(record));
+            }
+            batch.items.clear();
+            toWrite.put(batch);
+        }
+        // leave the end for the other workers
+        toExtract.put(batch);
+        toWrite.put(Batch.end());
+    }
+
+    private <T> void write(ResultSink sink, Semaphore inFlight, BlockingQueue<Batch<T>> toWrite, AtomicReference<Throwable> failure) throws IOException, InterruptedException {
+        Map<Long, Batch<T>> waiting = new HashMap<>();
+        long next = 0;
+        int workersDone = 0;
+        while (workersDone < workers) {
+            Batch<T> batch = toWrite.take();
+            if (batch.isFailure()) {
+                rethrow(failure.get());
+            }
+            if (batch.isEnd()) {
+                workersDone++;
+                continue;
+            }
+            if (!ordered) {
+                deliver(batch, sink, inFlight);
+                continue;
+            }
+            waiting.put(batch.sequence, batch);
+            while ((batch = waiting.remove(next)) != null) {
+                deliver(batch, sink, inFlight);
+                next++;
+            }
+        }
+    }
+
+    private static <T> void deliver(Batch<T> batch, ResultSink sink, Semaphore inFlight) {
+        for (int i = 0; i < batch.records.size(); i++) {
+            sink.accept(batch.records.get(i), batch.values.get(i));
+        }
+        inFlight.release();
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IllegalStateException("Extraction failed", failure);
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    // Starts a stage.  If it fails the failure is kept and the sink's stage told, which ends the pipeline.
+    private <T> Thread start(Stage stage, AtomicReference<Throwable> failure, BlockingQueue<Batch<T>> toWrite) {
+        Thread thread = threadFactory.newThread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                // the pipeline is shutting down
+            } catch (Throwable e) {
+                if (failure.compareAndSet(null, e)) {
+                    toWrite.offer(Batch.failure());
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    // Virtual threads on Java 21 and later, looked up by reflection so the library still runs on Java 8.
+    private static ThreadFactory newThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "marc4jextract-pipeline-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger count = new AtomicInteger();
+            return r -> {
+                Thread thread = new Thread(r, "marc4jextract-pipeline-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    private static class Batch<T> {
+        private static final long END = -1;
+        private static final long FAILURE = -2;
+
+        private final long sequence;
+        private final List<T> items = new ArrayList<>(BATCH_SIZE);
+        private final List<Record> records = new ArrayList<>(BATCH_SIZE);
+        private final List<Map<String, List<String>>> values = new ArrayList<>(BATCH_SIZE);
+
+        Batch(long sequence) {
+            this.sequence = sequence;
+        }
+
+        static <T> Batch<T> end() {
+            return new Batch<>(END);
+        }
+
+        static <T> Batch<T> failure() {
+            return new Batch<>(FAILURE);
+        }
+
+        boolean isEnd() {
+            return sequence == END;
+        }
+
+        boolean isFailure() {
+            return sequence == FAILURE;
+        }
+    }
+}
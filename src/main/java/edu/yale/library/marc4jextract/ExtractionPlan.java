@@ -0,0 +1,255 @@
+package edu.yale.library.marc4jextract;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The per-record setup for a list of compiled extractors, worked out once so extracting a record
+ * only needs to scan the record's fields.
+ */
+class ExtractionPlan {
+
+    private final List<Extractor> extractors;
+    // tags of the data fields any extractor or extractor function reads
+    private final Set<String> dataFieldTags = new HashSet<>();
+    // the same for three digit tags, including the ones matched by tag patterns like 6XX
+    private final boolean[] numericDataFieldTags = new boolean[1000];
+    private final List<String> tagPatterns = new ArrayList<>();
+    private boolean controlFieldDependent = false;
+    // the tags each extractor reads, and the extractors whose function reads any control field
+    private final Map<Extractor, Set<String>> tagsByExtractor = new IdentityHashMap<>();
+    private final Set<Extractor> readsAllControlFields = Collections.newSetFromMap(new IdentityHashMap<>());
+    private String specHash;
+    // ordinal of the first extractor with each name
+    private final Map<String, Integer> ordinalsByName = new HashMap<>();
+    // for each ordinal, the next ordinal with the same name, or -1
+    private final int[] nextOrdinalWithSameName;
+    // for each ordinal, the slot of each component whose raw values are shared with identical components, or -1
+    private final int[][] componentSlots;
+    private int sharedComponentCount = 0;
+    // plans for subsets of the extractors, most recently used last
+    private static final int SUB_PLAN_CACHE_SIZE = 64;
+    private final Map<BitSet, ExtractionPlan> subPlans = new LinkedHashMap<BitSet, ExtractionPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BitSet, ExtractionPlan> eldest) {
+            return size() > SUB_PLAN_CACHE_SIZE;
+        }
+    };
+
+    ExtractionPlan(List<Extractor> extractors) {
+        this.extractors = Collections.unmodifiableList(new ArrayList<>(extractors));
+        for (Extractor extractor : this.extractors) {
+            Set<String> tags = tagsByExtractor.computeIfAbsent(extractor, e -> new HashSet<>());
+            if (extractor.extractorComponentList != null) {
+                for (Extractor.ExtractorComponent component : extractor.extractorComponentList) {
+                    if (component.tagPattern) {
+                        tagPatterns.add(component.fieldTag);
+                    } else if (!component.isControl()) {
+                        dataFieldTags.add(component.fieldTag);
+                    } else {
+                        controlFieldDependent = true;
+                    }
+                    tags.add(component.fieldTag);
+                }
+            }
+            ExtractorFunction extractorFunction = extractor.getExtractorFunction();
+            if (extractorFunction != null) {
+                dataFieldTags.addAll(extractorFunction.getDependentFields());
+                tags.addAll(extractorFunction.getDependentFields());
+                if (extractorFunction.isControlFieldDependent()) {
+                    controlFieldDependent = true;
+                    readsAllControlFields.add(extractor);
+                }
+            }
+        }
+        dataFieldTags.add("880");
+        for (String tag : dataFieldTags) {
+            int index = tagIndex(tag);
+            if (index >= 0) {
+                numericDataFieldTags[index] = true;
+            }
+        }
+        for (String pattern : tagPatterns) {
+            markPattern(pattern);
+        }
+        componentSlots = assignComponentSlots();
+        nextOrdinalWithSameName = new int[this.extractors.size()];
+        for (int i = this.extractors.size() - 1; i >= 0; i--) {
+            Integer next = ordinalsByName.put(this.extractors.get(i).getName(), i);
+            nextOrdinalWithSameName[i] = next != null ? next : -1;
+        }
+    }
+
+    // Marks the three digit tags a pattern like 6XX or 90X matches.
+    private void markPattern(String pattern) {
+        if (pattern.length() != 3) {
+            return;
+        }
+        int[] low = new int[3];
+        int[] high = new int[3];
+        for (int i = 0; i < 3; i++) {
+            char p = pattern.charAt(i);
+            if (p == 'X') {
+                high[i] = 9;
+            } else if (isDigit(p)) {
+                low[i] = high[i] = p - '0';
+            } else {
+                return;
+            }
+        }
+        for (int a = low[0]; a <= high[0]; a++) {
+            for (int b = low[1]; b <= high[1]; b++) {
+                for (int c = low[2]; c <= high[2]; c++) {
+                    numericDataFieldTags[a * 100 + b * 10 + c] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The plan for the extractors with these ordinals, as re-extraction runs them.  The plans are cached since
+     * the same few sets of extractors are affected by edit after edit.
+     */
+    ExtractionPlan subPlan(BitSet ordinals) {
+        synchronized (subPlans) {
+            ExtractionPlan plan = subPlans.get(ordinals);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        List<Extractor> subset = new ArrayList<>();
+        for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1)) {
+            subset.add(extractors.get(i));
+        }
+        ExtractionPlan plan = new ExtractionPlan(subset);
+        synchronized (subPlans) {
+            subPlans.put((BitSet) ordinals.clone(), plan);
+        }
+        return plan;
+    }
+
+    // Components that extract the same raw values, like 100a used for display, sort and facet, share a slot
+    // so the values are only extracted once per record.
+    private int[][] assignComponentSlots() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Extractor extractor : extractors) {
+            if (extractor.extractorComponentList != null) {
+                for (Extractor.ExtractorComponent component : extractor.extractorComponentList) {
+                    counts.merge(component.getSharingKey(), 1, Integer::sum);
+                }
+            }
+        }
+        Map<String, Integer> slots = new HashMap<>();
+        int[][] slotsByOrdinal = new int[extractors.size()][];
+        for (int i = 0; i < extractors.size(); i++) {
+            List<Extractor.ExtractorComponent> components = extractors.get(i).extractorComponentList;
+            if (components == null) {
+                continue;
+            }
+            slotsByOrdinal[i] = new int[components.size()];
+            for (int c = 0; c < components.size(); c++) {
+                String key = components.get(c).getSharingKey();
+                slotsByOrdinal[i][c] = counts.get(key) > 1 ? slots.computeIfAbsent(key, k -> sharedComponentCount++) : -1;
+            }
+        }
+        return slotsByOrdinal;
+    }
+
+    // The shared value slot of each component of the extractor with this ordinal, -1 for unshared components.
+    int[] getComponentSlots(int ordinal) {
+        return componentSlots[ordinal];
+    }
+
+    int getSharedComponentCount() {
+        return sharedComponentCount;
+    }
+
+    /**
+     * True if the extractor reads any of the fields that changed or moved.
+     */
+    boolean isAffected(Extractor extractor, RecordChanges changes) {
+        if (changes.isControlFieldChanged() && readsAllControlFields.contains(extractor)) {
+            return true;
+        }
+        Set<String> tags = tagsByExtractor.get(extractor);
+        for (String tag : tags) {
+            if (changes.isChanged(tag)) {
+                return true;
+            }
+        }
+        // values come out in record order, so moving fields around can change them too
+        return changes.isReordered(tags);
+    }
+
+    // A fingerprint of the extractors' settings, so stored results can be matched to the specification that made them.
+    private static String hash(List<Extractor> extractors) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Extractor extractor : extractors) {
+                digest.update(extractor.describe().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    List<Extractor> getExtractors() {
+        return extractors;
+    }
+
+    boolean isDataFieldTag(String tag) {
+        int index = tagIndex(tag);
+        return index >= 0 ? numericDataFieldTags[index] : dataFieldTags.contains(tag);
+    }
+
+    /**
+     * Like isDataFieldTag(String), for a three digit tag given as its number, so parsers can check the tag's bytes
+     * without making a string of them.
+     */
+    boolean isDataFieldTag(int tagNumber) {
+        return numericDataFieldTags[tagNumber];
+    }
+
+    // The number of a three digit tag, or -1 for other tags.
+    private static int tagIndex(String tag) {
+        if (tag.length() == 3 && isDigit(tag.charAt(0)) && isDigit(tag.charAt(1)) && isDigit(tag.charAt(2))) {
+            return (tag.charAt(0) - '0') * 100 + (tag.charAt(1) - '0') * 10 + (tag.charAt(2) - '0');
+        }
+        return -1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * The ordinal of the extractor with this name, or -1.  When names repeat it's the first one.
+     */
+    int getOrdinal(String name) {
+        Integer ordinal = ordinalsByName.get(name);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    int getNextOrdinalWithSameName(int ordinal) {
+        return nextOrdinalWithSameName[ordinal];
+    }
+
+    boolean isControlFieldDependent() {
+        return controlFieldDependent;
+    }
+
+    synchronized String getSpecHash() {
+        if (specHash == null) {
+            specHash = hash(extractors);
+        }
+        return specHash;
+    }
+}
@@ -0,0 +1,168 @@
+package edu.yale.library.marc4jextract;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The values extracted from one record, held by extractor ordinal (the extractor's position in the specification).
+ *
+ * A result is made by JsonExtractionSpec.newResult() and can be passed to extractValues for record after record;
+ * each extraction replaces the values of the previous one, reusing the same lists.  Copy any values that need to
+ * be kept past the next extraction.  asMap() gives the same map extractValues(Record) returns, as a view.
+ */
+public class ExtractionResult {
+
+    private final ExtractionPlan plan;
+    private final List<String>[] values;
+    private Map<String, List<String>> mapView;
+
+    @SuppressWarnings("unchecked")
+    ExtractionResult(ExtractionPlan plan) {
+        this.plan = plan;
+        this.values = new List[plan.getExtractors().size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * The number of extractors, which is one more than the highest ordinal.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    public String getName(int ordinal) {
+        return plan.getExtractors().get(ordinal).getName();
+    }
+
+    /**
+     * The ordinal of the extractor with this name, or -1 if there is none.
+     */
+    public int getOrdinal(String name) {
+        return plan.getOrdinal(name);
+    }
+
+    /**
+     * The values of the extractor, empty if it didn't extract anything.
+     */
+    public List<String> getValues(int ordinal) {
+        return values[ordinal];
+    }
+
+    /**
+     * The values extracted by the extractor with this name, or null if it didn't extract anything.
+     */
+    public List<String> getValues(String name) {
+        List<String> found = null;
+        for (int i = plan.getOrdinal(name); i >= 0; i = plan.getNextOrdinalWithSameName(i)) {
+            if (!values[i].isEmpty()) {
+                found = values[i];
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A read-only map view of the values, keyed by name, with only the extractors that extracted something.
+     */
+    public Map<String, List<String>> asMap() {
+        if (mapView == null) {
+            mapView = new MapView();
+        }
+        return mapView;
+    }
+
+    public void clear() {
+        for (List<String> v : values) {
+            v.clear();
+        }
+    }
+
+    boolean isFor(ExtractionPlan plan) {
+        return this.plan == plan;
+    }
+
+    List<String> clearedValues(int ordinal) {
+        List<String> v = values[ordinal];
+        v.clear();
+        return v;
+    }
+
+    // True if the ordinal's values are the ones the map holds for its name, like the last put into a HashMap.
+    boolean isMapped(int ordinal) {
+        if (values[ordinal].isEmpty()) {
+            return false;
+        }
+        for (int i = plan.getNextOrdinalWithSameName(ordinal); i >= 0; i = plan.getNextOrdinalWithSameName(i)) {
+            if (!values[i].isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class MapView extends AbstractMap<String, List<String>> {
+
+        @Override
+        public List<String> get(Object key) {
+            return key instanceof String ? getValues((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, List<String>>> entrySet() {
+            return new AbstractSet<Entry<String, List<String>>>() {
+                @Override
+                public Iterator<Entry<String, List<String>>> iterator() {
+                    return new Iterator<Entry<String, List<String>>>() {
+                        private int next = advance(0);
+
+                        private int advance(int from) {
+                            while (from < values.length && !isMapped(from)) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < values.length;
+                        }
+
+                        @Override
+                        public Entry<String, List<String>> next() {
+                            if (next >= values.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, List<String>> entry = new SimpleImmutableEntry<>(getName(next), values[next]);
+                            next = advance(next + 1);
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (int i = 0; i < values.length; i++) {
+                        if (isMapped(i)) {
+                            size++;
+                        }
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+}
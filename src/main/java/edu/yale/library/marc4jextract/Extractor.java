@@ -8,7 +8,6 @@ import org.marc4j.marc.Subfield;
 
 import java.util.*;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class Extractor {
 
@@ -20,8 +19,11 @@ public class Extractor {
     private String delimiter;
     private Pattern filterPattern;
     private String extractFunction;
+    private ExtractorFunction extractorFunction;
     List<ExtractorComponent> extractorComponentList;
     private boolean keepSubfieldOrder = false;
+    private boolean dedupValues = false;
+    private volatile ValuePool valuePool;
 
 
     Extractor(String name,
@@ -76,41 +78,63 @@ public class Extractor {
 
 
     public static List<String> extract(Record record, String spec, ScriptInclusion scriptInclusion, boolean trimPunctuation, String filter, String delimiter) throws InvalidSpecException {
-        Extractor extractor = new Extractor("single", spec, scriptInclusion, trimPunctuation, filter, delimiter, null).compile();
-        RecordExtractor recordExtractor = new RecordExtractor(record);
-        Map<String, List<String>> valueMap = recordExtractor.extractValues(Arrays.stream(new Extractor[]{extractor}).collect(Collectors.toList()));
-        return valueMap.get("single");
+        return extract(record, spec, scriptInclusion, trimPunctuation, filter, delimiter, null);
     }
 
     public static List<String> extract(Record record, String extractFunction) throws InvalidSpecException {
-        Extractor extractor = new Extractor("single",null,null,false,null,null, extractFunction).compile();
-        RecordExtractor recordExtractor = new RecordExtractor(record);
-        Map<String, List<String>> valueMap = recordExtractor.extractValues(Arrays.stream(new Extractor[]{extractor}).collect(Collectors.toList()));
-        return valueMap.get("single");
+        return extract(record, null, null, false, null, null, extractFunction);
     }
 
     public static List<String> extract(Record record, String spec, ScriptInclusion scriptInclusion, boolean trimPunctuation, String filter, String delimiter, String extractFunction) throws InvalidSpecException {
-        Extractor extractor = new Extractor("single", spec, scriptInclusion, trimPunctuation, filter, delimiter, extractFunction).compile();
-        RecordExtractor recordExtractor = new RecordExtractor(record);
-        Map<String, List<String>> valueMap = recordExtractor.extractValues(Arrays.stream(new Extractor[]{extractor}).collect(Collectors.toList()));
-        return valueMap.get("single");
+        ExtractionPlan plan = compiledPlan(spec, scriptInclusion, trimPunctuation, filter, delimiter, extractFunction);
+        return new RecordExtractor(record).extractValues(plan).get("single");
+    }
+
+    // Compiled single extractor plans for the static extract methods, most recently used last.
+    private static final int COMPILED_PLAN_CACHE_SIZE = 256;
+    private static final Map<String, ExtractionPlan> compiledPlans = new LinkedHashMap<String, ExtractionPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ExtractionPlan> eldest) {
+            return size() > COMPILED_PLAN_CACHE_SIZE;
+        }
+    };
+
+    private static ExtractionPlan compiledPlan(String spec, ScriptInclusion scriptInclusion, boolean trimPunctuation, String filter, String delimiter, String extractFunction) throws InvalidSpecException {
+        Extractor extractor = new Extractor("single", spec, scriptInclusion, trimPunctuation, filter, delimiter, extractFunction);
+        String key = extractor.describe();
+        synchronized (compiledPlans) {
+            ExtractionPlan plan = compiledPlans.get(key);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        // compile outside the lock; if two threads miss at once both compile and one plan is kept
+        ExtractionPlan plan = new ExtractionPlan(Collections.singletonList(extractor.compile()));
+        synchronized (compiledPlans) {
+            compiledPlans.put(key, plan);
+        }
+        return plan;
     }
 
     public Extractor compile() throws InvalidSpecException {
+        if (!StringUtils.isEmpty(extractFunction)) {
+            extractorFunction = FunctionMap.get(extractFunction);
+        }
         if (spec != null) {
             String[] specComponents = this.spec.split(":");
             extractorComponentList = new ArrayList<>();
             for (String specComponent : specComponents) {
                 if (specComponent.contains("X")) {
-                    if (specComponent.startsWith("XX", 1)) {
-                        for (int i = 0; i < 100; i++) {
-                            extractorComponentList.add(new ExtractorComponent(specComponent.substring(0, 1) +
-                                    String.format("%02d", i) + specComponent.substring(3)));
+                    if (specComponent.startsWith("XX", 1) || specComponent.startsWith("X", 2)) {
+                        // control fields are looked up by tag, so 00X is expanded to a component per tag
+                        if (specComponent.startsWith("0XX") || specComponent.startsWith("00X")) {
+                            for (int i = 0; i < 10; i++) {
+                                extractorComponentList.add(new ExtractorComponent("00" + i + specComponent.substring(3)));
+                            }
                         }
-                    } else if (specComponent.startsWith("X", 2)) {
-                        for (int i = 0; i < 10; i++) {
-                            extractorComponentList.add(new ExtractorComponent(specComponent.substring(0, 2) +
-                                    String.format("%d", i) + specComponent.substring(3)));
+                        // data fields are matched against the tags present in the record
+                        if (!specComponent.startsWith("00X")) {
+                            extractorComponentList.add(new ExtractorComponent(specComponent));
                         }
                     }
                 } else {
@@ -131,21 +155,48 @@ public class Extractor {
 
     List<String> extractValues(RecordExtractor recordExtractor) {
         List<String> ret = new ArrayList<>();
-        componentExtract(recordExtractor, ret);
-        if (extractFunction != null) {
-            ExtractorFunction extractorFunction = FunctionMap.get(extractFunction);
-            if ( extractorFunction != null ) {
-                extractorFunction.extractValues(recordExtractor, ret);
+        extractValues(recordExtractor, ret);
+        return ret;
+    }
+
+    // Adds the values to the given list, which should be empty.
+    void extractValues(RecordExtractor recordExtractor, List<String> values) {
+        extractValues(recordExtractor, values, null);
+    }
+
+    // componentSlots, when not null, has the slot of each component whose raw values are shared with other
+    // extractors of the plan, or -1.
+    void extractValues(RecordExtractor recordExtractor, List<String> values, int[] componentSlots) {
+        componentExtract(recordExtractor, values, componentSlots);
+        if (extractorFunction != null) {
+            extractorFunction.extractValues(recordExtractor, values);
+        }
+        ValuePool pool = valuePool;
+        if (pool != null) {
+            for (int i = 0; i < values.size(); i++) {
+                values.set(i, pool.canonicalize(values.get(i)));
             }
         }
-        return ret;
     }
 
-    private void componentExtract(RecordExtractor recordExtractor, List<String> values) {
+    private void componentExtract(RecordExtractor recordExtractor, List<String> values, int[] componentSlots) {
         List<ValueAndId> valuesWithIds = new ArrayList<>();
         if ( extractorComponentList != null ) {
-            for (ExtractorComponent component : extractorComponentList) {
-                component.extract(recordExtractor, valuesWithIds);
+            for (int c = 0; c < extractorComponentList.size(); c++) {
+                ExtractorComponent component = extractorComponentList.get(c);
+                int slot = componentSlots != null ? componentSlots[c] : -1;
+                if (slot < 0) {
+                    int start = valuesWithIds.size();
+                    component.extract(recordExtractor, valuesWithIds);
+                    for (int i = start; i < valuesWithIds.size(); i++) {
+                        ValueAndId value = valuesWithIds.get(i);
+                        value.value = component.process(value.value);
+                    }
+                } else {
+                    for (ValueAndId raw : recordExtractor.sharedComponentValues(slot, component)) {
+                        valuesWithIds.add(new ValueAndId(raw.id, component.process(raw.value)));
+                    }
+                }
             }
         }
         // sort by id, which is the order in the record
@@ -159,10 +210,48 @@ public class Extractor {
         return name;
     }
 
+    boolean isDedupValues() {
+        return dedupValues;
+    }
+
+    void setDedupValues(boolean dedupValues) {
+        this.dedupValues = dedupValues;
+    }
+
+    // The pool values are canonicalized with, null for none.
+    void setValuePool(ValuePool valuePool) {
+        this.valuePool = valuePool;
+    }
+
     String getExtractFunction() {
         return extractFunction;
     }
 
+    ExtractorFunction getExtractorFunction() {
+        return extractorFunction;
+    }
+
+    // Everything that affects the values this extractor produces, for fingerprinting a specification.
+    String describe() {
+        return name + '\u0000' + spec + '\u0000' + scriptInclusion + '\u0000' + trimPunctuation + '\u0000' + filter
+                + '\u0000' + delimiter + '\u0000' + extractFunction + '\u0000' + keepSubfieldOrder;
+    }
+
+    // True if the tag matches the tag pattern, where X stands for any digit.
+    static boolean tagMatches(String pattern, String tag) {
+        if (tag.length() != 3 || pattern.length() != 3) {
+            return false;
+        }
+        for (int i = 0; i < 3; i++) {
+            char p = pattern.charAt(i);
+            char c = tag.charAt(i);
+            if (p == 'X' ? c < '0' || c > '9' : p != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     static class ValueAndId {
         long id;
         String value;
@@ -180,7 +269,13 @@ public class Extractor {
         char indicator1 = '*';
         char indicator2 = '*';
         String fieldTag;
+        // true when fieldTag has X wildcards
+        boolean tagPattern;
         String sfSpec;
+        // the spec component with _ATOZ_ expanded
+        private String specComponent;
+        private final int[] subfieldRanks = new int[128];
+        private final Comparator<Subfield> subfieldRankComparator = Comparator.comparingInt(subfield -> subfieldRank(subfield.getCode()));
 
         public ExtractorComponent(String specComponent) {
             parseSpec(specComponent);
@@ -190,9 +285,30 @@ public class Extractor {
             return fieldTag.startsWith("00");
         }
 
+        // Components with the same key extract the same raw values, before trimming and filtering.
+        String getSharingKey() {
+            return specComponent + '\u0000' + scriptInclusion + '\u0000' + delimiter + '\u0000' + keepSubfieldOrder;
+        }
+
+        // Trims and filters a raw data field value.  Control field values are used as they are.
+        String process(String value) {
+            if (isControl()) {
+                return value;
+            }
+            if (trimPunctuation) {
+                value = StringFormatter.trimPunctuation(value);
+            }
+            if (filterPattern != null) {
+                value = filterPattern.matcher(value).replaceFirst("$1");
+            }
+            return value;
+        }
+
         private void parseSpec(String specComponent) {
             specComponent = specComponent.replace("_ATOZ_", "abcdefghijklmnopqrstuvwxyz");
+            this.specComponent = specComponent;
             fieldTag = specComponent.substring(0, 3);
+            tagPattern = fieldTag.indexOf('X') >= 0;
             if (specComponent.length() > 3) {
                 int ix = 3;
                 if (specComponent.charAt(ix) == '|') {
@@ -211,97 +327,127 @@ public class Extractor {
                         }
                     } else {
                         sfSpec = specComponent.substring(ix);
+                        Arrays.fill(subfieldRanks, -1);
+                        for (int i = sfSpec.length() - 1; i >= 0; i--) {
+                            char code = sfSpec.charAt(i);
+                            if (code < subfieldRanks.length) {
+                                subfieldRanks[code] = i;
+                            }
+                        }
                     }
                 }
             }
         }
 
-        private void extract(RecordExtractor record, List<ValueAndId> valuesWithIds) {
+        // Adds the raw values, to be trimmed and filtered with process.
+        void extract(RecordExtractor record, List<ValueAndId> valuesWithIds) {
             if (isControl()) {
-                ControlField controlField = record.controlFields.get(fieldTag);
+                ControlField controlField = record.getControlField(fieldTag);
                 if (controlField == null) return;
                 String value = controlField.getData();
                 if (range1 >= 0 && range2 > 0 && range1 < value.length() && range1 < range2) {
-                    valuesWithIds.add(new ValueAndId(controlField.getId(), controlField.getData().substring(range1, Math.min(value.length(), range2 + 1))));
+                    valuesWithIds.add(new ValueAndId(record.getFieldId(controlField), controlField.getData().substring(range1, Math.min(value.length(), range2 + 1))));
                 } else if (range1 >= 0 && range1 < value.length()) {
-                    valuesWithIds.add(new ValueAndId(controlField.getId(), controlField.getData().substring(range1, range1 + 1)));
+                    valuesWithIds.add(new ValueAndId(record.getFieldId(controlField), controlField.getData().substring(range1, range1 + 1)));
                 } else {
-                    valuesWithIds.add(new ValueAndId(controlField.getId(), value));
+                    valuesWithIds.add(new ValueAndId(record.getFieldId(controlField), value));
+                }
+            } else if (tagPattern) {
+                if (scriptInclusion != ScriptInclusion.ONLY) {
+                    for (String tag : record.getPresentDataTags()) {
+                        if (tagMatches(fieldTag, tag)) {
+                            extractFromDataFields(record, valuesWithIds, record.getDataFields(tag));
+                        }
+                    }
+                }
+                if (scriptInclusion != ScriptInclusion.NONE) {
+                    for (String tag : record.getPresentLinked880Tags()) {
+                        if (tagMatches(fieldTag, tag)) {
+                            extractFromDataFields(record, valuesWithIds, record.getLinked880s(tag));
+                        }
+                    }
                 }
             } else {
                 if (scriptInclusion != ScriptInclusion.ONLY) {
-                    List<DataField> fields = record.dataFields.get(fieldTag);
-                    extractFromDataFields(valuesWithIds, fields);
+                    List<DataField> fields = record.getDataFields(fieldTag);
+                    extractFromDataFields(record, valuesWithIds, fields);
                 }
                 if (scriptInclusion != ScriptInclusion.NONE) {
-                    List<DataField> fields880 = record.linked880s.get(fieldTag);
-                    extractFromDataFields(valuesWithIds, fields880);
+                    List<DataField> fields880 = record.getLinked880s(fieldTag);
+                    extractFromDataFields(record, valuesWithIds, fields880);
                 }
             }
         }
 
-        private Comparator<Subfield> standardComparator(String sfSpec) {
-            return Comparator.comparingInt(subfield -> sfSpec.indexOf(subfield.getCode()));
-        }
-
-        private Comparator<Subfield> nonSorting() {
-            return new Comparator<Subfield>() {
-                @Override
-                public int compare(Subfield o1, Subfield o2) {
-                    return 0;
-                }
-            };
+        // position of the subfield code in sfSpec, or -1 when the subfield is not selected
+        private int subfieldRank(char code) {
+            if (sfSpec == null) {
+                return Character.isAlphabetic(code) ? 0 : -1;
+            }
+            return code < subfieldRanks.length ? subfieldRanks[code] : sfSpec.indexOf(code);
         }
 
-        private void extractFromDataFields( List<ValueAndId> valuesWithIds, List<DataField> fields) {
+        private void extractFromDataFields(RecordExtractor record, List<ValueAndId> valuesWithIds, List<DataField> fields) {
             if (fields != null) {
                 for (DataField field : fields) {
                     if ((indicator1 == '*' || field.getIndicator1() == indicator1)
                             && (indicator2 == '*' || field.getIndicator2() == indicator2)) {
-                        List<String> r = new ArrayList<>();
-                        if (sfSpec != null && sfSpec.length() > 1) {
-                            Comparator<Subfield> comparator = keepSubfieldOrder ? nonSorting() : standardComparator(sfSpec);
-                            List<String> vals = field.getSubfields().stream().
-                                    filter(subfield -> sfSpec.indexOf(subfield.getCode()) >= 0).
-                                    sorted(comparator).
-                                    map(subfield ->
-                                            subfield.getData()).
-                                    filter(s ->
-                                            !StringUtils.isEmpty(s)).collect(Collectors.toList());
-                            if (vals.size()>0) {
-                                r.add(vals.stream().collect(Collectors.joining(delimiter)));
+                        long id = record.getFieldId(field);
+                        if (sfSpec != null && sfSpec.length() == 1) {
+                            // each subfield is a separate value
+                            for (Subfield subfield : field.getSubfields()) {
+                                if (subfieldRank(subfield.getCode()) >= 0 && !StringUtils.isEmpty(subfield.getData())) {
+                                    addValue(valuesWithIds, id, subfield.getData());
+                                }
                             }
-                        } else if (sfSpec != null && sfSpec.length() == 1) {
-                            Comparator<Subfield> comparator = standardComparator(sfSpec);
-                            r.addAll(field.getSubfields().stream().
-                                    filter(subfield -> sfSpec.indexOf(subfield.getCode()) >= 0).
-                                    sorted(comparator).
-                                    map(subfield ->
-                                            subfield.getData()).filter(s -> !StringUtils.isEmpty(s)).collect(Collectors.toList()));
                         } else {
-                            List<String> vals = field.getSubfields().stream().
-                                    filter(subfield -> Character.isAlphabetic(subfield.getCode())).
-                                    map(subfield ->
-                                            subfield.getData()).
-                                    filter(s ->
-                                            !StringUtils.isEmpty(s)).collect(Collectors.toList());
-                            if (vals.size()>0) {
-                                r.add(vals.stream().collect(Collectors.joining(delimiter)));
+                            String value = joinSubfields(record, field);
+                            if (value != null) {
+                                addValue(valuesWithIds, id, value);
                             }
                         }
-                        if (trimPunctuation) {
-                            r = r.stream().map(s -> StringFormatter.trimPunctuation(s)).collect(Collectors.toList());
-                        }
-                        if (filterPattern != null) {
-                            r = r.stream().map(s -> filterPattern.matcher(s).replaceFirst("$1")).collect(Collectors.toList());
-                        }
-                        for (String value : r) {
-                            valuesWithIds.add(new ValueAndId(field.getId(),value));
-                        }
                     }
                 }
             }
         }
+
+        // Joins the selected subfields in sfSpec order (or field order when keepSubfieldOrder is set).
+        private String joinSubfields(RecordExtractor record, DataField field) {
+            List<Subfield> selected = record.subfieldBuffer;
+            selected.clear();
+            boolean inSpecOrder = true;
+            int lastRank = -1;
+            for (Subfield subfield : field.getSubfields()) {
+                int rank = subfieldRank(subfield.getCode());
+                if (rank >= 0 && !StringUtils.isEmpty(subfield.getData())) {
+                    inSpecOrder = inSpecOrder && rank >= lastRank;
+                    lastRank = rank;
+                    selected.add(subfield);
+                }
+            }
+            if (selected.isEmpty()) {
+                return null;
+            }
+            if (!inSpecOrder && !keepSubfieldOrder) {
+                selected.sort(subfieldRankComparator); // stable, so repeated subfields keep their field order
+            }
+            if (selected.size() == 1) {
+                return selected.get(0).getData();
+            }
+            StringBuilder value = record.valueBuilder;
+            value.setLength(0);
+            for (int i = 0; i < selected.size(); i++) {
+                if (i > 0) {
+                    value.append(delimiter);
+                }
+                value.append(selected.get(i).getData());
+            }
+            return value.toString();
+        }
+
+        private void addValue(List<ValueAndId> valuesWithIds, long id, String value) {
+            valuesWithIds.add(new ValueAndId(id, value));
+        }
     }
 }
 
@@ -3,26 +3,322 @@ package edu.yale.library.marc4jextract;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.TypeFactory;
+import org.marc4j.MarcException;
+import org.marc4j.MarcReader;
+import org.marc4j.marc.ControlField;
 import org.marc4j.marc.Record;
+import org.marc4j.marc.VariableField;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class JsonExtractionSpec {
 
     private List<Extractor> extractors = new ArrayList<>();
+    private ExtractionPlan plan = new ExtractionPlan(extractors);
+    // the field lists built while extracting are reused for the next record on the same thread
+    private final ThreadLocal<RecordExtractor> recordExtractors = ThreadLocal.withInitial(RecordExtractor::new);
+
+    private volatile ExtractionListener listener;
+    private volatile ResultStore resultStore;
+    private ValuePool valuePool;
 
     public JsonExtractionSpec() {
     }
 
+    /**
+     * Sets a listener told about every extractor run, for example an ExtractorMetrics.
+     * Null, the default, turns this off.
+     */
+    public void setExtractionListener(ExtractionListener listener) {
+        this.listener = listener;
+    }
+
+    public ExtractionListener getExtractionListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the pool used to share repeated values between records, for the extractors with "dedupValues": true.
+     * Null, the default, turns this off.
+     */
+    public synchronized void setValuePool(ValuePool valuePool) {
+        this.valuePool = valuePool;
+        for (Extractor extractor : extractors) {
+            extractor.setValuePool(extractor.isDedupValues() ? valuePool : null);
+        }
+    }
+
+    public synchronized ValuePool getValuePool() {
+        return valuePool;
+    }
+
+    /**
+     * Sets a store of previously extracted values.  A record whose control number (001), date of latest
+     * transaction (005) and specification match a stored result gets the stored values without being extracted;
+     * other records are extracted and their values stored.  Records without an 001 or 005 are always extracted.
+     * Null, the default, turns this off.
+     */
+    public void setResultStore(ResultStore resultStore) {
+        this.resultStore = resultStore;
+    }
+
+    public ResultStore getResultStore() {
+        return resultStore;
+    }
+
+    /**
+     * A hash of the settings of all the extractors, which identifies results extracted with this specification.
+     */
+    public String getSpecHash() {
+        return plan.getSpecHash();
+    }
+
     public Map<String, List<String>> extractValues(Record marcRecord) {
-        RecordExtractor recordExtractor = new RecordExtractor(marcRecord);
-        long l = System.currentTimeMillis();
-        Map<String, List<String>> ret = recordExtractor.extractValues(extractors);
-        return ret;
+        return extract(recordExtractors.get(), marcRecord);
+    }
+
+    /**
+     * Makes a result to pass to extractValues(Record, ExtractionResult), which can be reused for record after record.
+     * It only works with the extractors loaded when it's made.
+     */
+    public ExtractionResult newResult() {
+        return new ExtractionResult(plan);
+    }
+
+    /**
+     * Extracts values into the result, replacing the values it held, without building a map.
+     */
+    public void extractValues(Record marcRecord, ExtractionResult result) {
+        ExtractionPlan plan = this.plan;
+        if (!result.isFor(plan)) {
+            throw new IllegalArgumentException("The result was made before the current extractors were loaded");
+        }
+        ResultStore store = resultStore;
+        String id = store != null ? marcRecord.getControlNumber() : null;
+        String version = id != null ? latestTransaction(marcRecord) : null;
+        if (version == null) {
+            recordExtractors.get().extractValues(marcRecord, plan, listener, result);
+            return;
+        }
+        Map<String, List<String>> stored = store.get(id, version, plan.getSpecHash());
+        if (stored != null) {
+            result.clear();
+            for (Map.Entry<String, List<String>> entry : stored.entrySet()) {
+                int ordinal = result.getOrdinal(entry.getKey());
+                if (ordinal >= 0) {
+                    result.getValues(ordinal).addAll(entry.getValue());
+                }
+            }
+        } else {
+            recordExtractors.get().extractValues(marcRecord, plan, listener, result);
+            store.put(id, version, plan.getSpecHash(), result.asMap());
+        }
+    }
+
+    /**
+     * Extracts values from a new version of a record, only running the extractors that read fields which differ
+     * from the old version.  The values of the other extractors are taken from previousValues, which should be
+     * the values extracted from oldRecord with this specification.
+     */
+    public Map<String, List<String>> reextractValues(Map<String, List<String>> previousValues, Record oldRecord, Record newRecord) {
+        ExtractionPlan plan = this.plan;
+        RecordChanges changes = new RecordChanges(oldRecord, newRecord);
+        List<Extractor> extractors = plan.getExtractors();
+        BitSet affected = new BitSet(extractors.size());
+        Set<String> affectedNames = new HashSet<>();
+        for (int i = 0; i < extractors.size(); i++) {
+            String name = extractors.get(i).getName();
+            if (!affectedNames.contains(name) && plan.isAffected(extractors.get(i), changes)) {
+                affectedNames.add(name);
+                // the last values extracted under a name win, so every extractor with the name runs again
+                for (int ordinal = plan.getOrdinal(name); ordinal >= 0; ordinal = plan.getNextOrdinalWithSameName(ordinal)) {
+                    affected.set(ordinal);
+                }
+            }
+        }
+        Map<String, List<String>> values = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : previousValues.entrySet()) {
+            if (!affectedNames.contains(entry.getKey())) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!affected.isEmpty()) {
+            values.putAll(recordExtractors.get().extractValues(newRecord, plan.subPlan(affected), listener));
+        }
+        return values;
+    }
+
+    /**
+     * Extracts values from every record in the reader, passing each record and its values to the sink
+     * as soon as they are extracted.
+     */
+    public void extractAll(MarcReader reader, ResultSink sink) {
+        RecordExtractor recordExtractor = recordExtractors.get();
+        while (reader.hasNext()) {
+            Record record = reader.next();
+            sink.accept(record, extract(recordExtractor, record));
+        }
+    }
+
+    /**
+     * Extracts values from a single ISO 2709 (binary MARC) record without building a full marc4j Record.
+     * Only the fields used by the extractors are decoded; the values are the same as extracting from
+     * the record read with MarcStreamReader.
+     */
+    public Map<String, List<String>> extractValues(byte[] marcRecord) {
+        Record record = newRawRecordParser().parse(ByteBuffer.wrap(marcRecord));
+        return extract(recordExtractors.get(), record);
+    }
+
+    /**
+     * Extracts values from every ISO 2709 record in the stream, decoding only the fields used by the
+     * extractors.  The records passed to the sink only contain those fields and the 001 and 005.
+     */
+    public void extractAll(InputStream marcStream, ResultSink sink) throws IOException {
+        RawRecordParser parser = newRawRecordParser();
+        RecordExtractor recordExtractor = recordExtractors.get();
+        ByteBuffer buffer;
+        while ((buffer = parser.readRecord(marcStream)) != null) {
+            Record record = parser.parse(buffer);
+            sink.accept(record, extract(recordExtractor, record));
+        }
+    }
+
+    /**
+     * Extracts values from every record in a MARCXML document, streaming through it with StAX.  Only the fields
+     * used by the extractors are built; the values are the same as extracting from the records read with
+     * MarcXmlReader.  The records passed to the sink only contain those fields and the 001 and 005.
+     */
+    public void extractAllXml(InputStream marcXml, ResultSink sink) {
+        MarcXmlRecordParser parser = new MarcXmlRecordParser(plan, marcXml);
+        RecordExtractor recordExtractor = recordExtractors.get();
+        Record record;
+        while ((record = parser.next()) != null) {
+            sink.accept(record, extract(recordExtractor, record));
+        }
+    }
+
+    /**
+     * Extracts values from a single MARC-in-JSON record without building a full marc4j Record.  Only the fields
+     * used by the extractors are built; the values are the same as extracting from the record read with
+     * MarcJsonReader.
+     */
+    public Map<String, List<String>> extractValuesJson(String marcInJson) {
+        try {
+            Record record = new MarcJsonRecordParser(plan, marcInJson).next();
+            if (record == null) {
+                throw new MarcException("no MARC-in-JSON record");
+            }
+            return extract(recordExtractors.get(), record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Extracts values from every MARC-in-JSON record in the stream, streaming through it with Jackson.  The records
+     * can follow one another, as MarcJsonWriter writes them, or be in an array.  Only the fields used by the
+     * extractors are built; the records passed to the sink only contain those fields and the 001 and 005.
+     */
+    public void extractAllJson(InputStream marcInJson, ResultSink sink) throws IOException {
+        MarcJsonRecordParser parser = new MarcJsonRecordParser(plan, marcInJson);
+        RecordExtractor recordExtractor = recordExtractors.get();
+        Record record;
+        while ((record = parser.next()) != null) {
+            sink.accept(record, extract(recordExtractor, record));
+        }
+    }
+
+    /**
+     * Extracts values from every record in the reader using a pool of worker threads.
+     * Records are read and passed to the sink on the calling thread.  When ordered is true,
+     * the sink receives the records in the order they were read, otherwise in the order
+     * their extraction completes.
+     */
+    public void extractAll(MarcReader reader, ResultSink sink, int threads, boolean ordered) throws InterruptedException {
+        new ParallelExtractor(this, threads, ordered).extractAll(reader, sink);
+    }
+
+    /**
+     * Extracts values from every record in an ISO 2709 file using a pool of worker threads.
+     * The file is memory mapped and split into ranges of records which the workers parse directly,
+     * decoding only the fields used by the extractors.  The sink is called on the calling thread,
+     * with the records in file order when ordered is true.  Each range starts out as ISO-8859-1, so unlike
+     * MarcStreamReader, a record whose leader/09 is neither blank nor 'a' doesn't always get the character set
+     * of the record before it.
+     */
+    public void extractAll(Path marcFile, ResultSink sink, int threads, boolean ordered) throws IOException, InterruptedException {
+        new ParallelExtractor(this, threads, ordered).extractAll(new MappedMarcFile(marcFile), sink);
+    }
+
+    /**
+     * Extracts values from every record in the reader in a pipeline: records are read on a thread of their own,
+     * extracted by the workers and passed to the sink on the calling thread, with bounded queues between the
+     * stages so reading, extraction and writing overlap.  On Java 21 and later the reader and workers run on
+     * virtual threads.  When ordered is true the sink receives the records in the order they were read.
+     */
+    public void extractAllPipelined(MarcReader reader, ResultSink sink, int workers, boolean ordered) throws InterruptedException {
+        try {
+            new ExtractionPipeline(this, workers, ordered).run(() -> reader.hasNext() ? reader.next() : null,
+                    () -> record -> record, sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a MarcReader doesn't throw IOExceptions
+        }
+    }
+
+    /**
+     * Extracts values from every ISO 2709 record in the stream in a pipeline, like
+     * extractAllPipelined(MarcReader, ...).  The reader thread only splits the stream into records; they are
+     * parsed by the workers, decoding only the fields used by the extractors.  Each worker has its own parser,
+     * so as with extractAll(Path, ...), a record whose leader/09 is neither blank nor 'a' doesn't always get
+     * the character set of the record before it.
+     */
+    public void extractAllPipelined(InputStream marcStream, ResultSink sink, int workers, boolean ordered) throws IOException, InterruptedException {
+        RawRecordParser reader = newRawRecordParser();
+        new ExtractionPipeline(this, workers, ordered).run(() -> {
+            ByteBuffer buffer = reader.readRecord(marcStream);
+            return buffer != null ? Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit()) : null;
+        }, () -> {
+            RawRecordParser parser = newRawRecordParser();
+            return bytes -> parser.parse(ByteBuffer.wrap(bytes));
+        }, sink);
+    }
+
+    private Map<String, List<String>> extract(RecordExtractor recordExtractor, Record record) {
+        ExtractionPlan plan = this.plan;
+        ResultStore store = resultStore;
+        String id = store != null ? record.getControlNumber() : null;
+        String version = id != null ? latestTransaction(record) : null;
+        if (version == null) {
+            return recordExtractor.extractValues(record, plan, listener);
+        }
+        Map<String, List<String>> values = store.get(id, version, plan.getSpecHash());
+        if (values == null) {
+            values = recordExtractor.extractValues(record, plan, listener);
+            store.put(id, version, plan.getSpecHash(), values);
+        }
+        return values;
+    }
+
+    private static String latestTransaction(Record record) {
+        VariableField latestTransaction = record.getVariableField("005");
+        return latestTransaction instanceof ControlField ? ((ControlField) latestTransaction).getData() : null;
+    }
+
+    RawRecordParser newRawRecordParser() {
+        return new RawRecordParser(plan);
     }
 
     public void loadExtractors( String json ) throws InvalidSpecException {
@@ -52,9 +348,12 @@ public class JsonExtractionSpec {
             Extractor e = new Extractor(entry.name, entry.fieldSpec,
                     entry.scriptInclusion, entry.trimPunctuation, entry.filter, entry.delimiter,entry.extractFunction,
                     entry.keepSubfieldOrder);
+            e.setDedupValues(entry.dedupValues);
             e.compile();
             extractors.add(e);
         }
+        plan = new ExtractionPlan(extractors);
+        setValuePool(valuePool);
     }
 
     private static class ExtractorRecord {
@@ -66,6 +365,7 @@ public class JsonExtractionSpec {
         private String delimiter = " ";
         private String extractFunction;
         private boolean keepSubfieldOrder;
+        private boolean dedupValues;
 
         public String getName() {
             return name;
@@ -129,5 +429,13 @@ public class JsonExtractionSpec {
         public void setKeepSubfieldOrder(boolean keepSubfieldOrder) {
             this.keepSubfieldOrder = keepSubfieldOrder;
         }
+
+        public boolean isDedupValues() {
+            return dedupValues;
+        }
+
+        public void setDedupValues(boolean dedupValues) {
+            this.dedupValues = dedupValues;
+        }
     }
 }
@@ -0,0 +1,192 @@
+package edu.yale.library.marc4jextract;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.marc4j.marc.Record;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes extracted values as JSON documents with Jackson's streaming generator, without building a JSON tree.
+ *
+ * Each record becomes one object with a field for each extractor that extracted something.  Values are written
+ * as arrays, except for the fields set as single valued, which get their first value.  The writer can either
+ * write one document per line (NDJSON) to a stream, or write Solr JSON update batches: arrays of up to batchSize
+ * documents, each written to a new stream from a BatchOutput.
+ *
+ * As a ResultSink it can be passed straight to JsonExtractionSpec.extractAll.  Close it when done to finish the
+ * last batch.  The NDJSON stream is flushed but not closed.
+ */
+public class JsonResultWriter implements ResultSink, Flushable, Closeable {
+
+    /**
+     * Opens the stream for each Solr batch, for example the body of an update request.
+     * The writer closes the stream when the batch is complete.
+     */
+    public interface BatchOutput {
+        OutputStream openBatch() throws IOException;
+    }
+
+    private static final JsonFactory factory = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .setRootValueSeparator(null); // the NDJSON line ends are written explicitly
+
+    private final OutputStream out;
+    private final BatchOutput batchOutput;
+    private final int batchSize;
+    private JsonGenerator generator;
+    private int documentsInBatch = 0;
+    private Set<String> singleValuedFields = Collections.emptySet();
+    private String idField;
+    // whether the current document has its id, so an extractor's field of the same name is left out
+    private boolean idWritten = false;
+
+    private JsonResultWriter(OutputStream out, BatchOutput batchOutput, int batchSize) {
+        this.out = out;
+        this.batchOutput = batchOutput;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * A writer of one JSON document per line.
+     */
+    public static JsonResultWriter ndjson(OutputStream out) {
+        return new JsonResultWriter(out, null, 0);
+    }
+
+    /**
+     * A writer of Solr JSON update batches of up to batchSize documents.
+     */
+    public static JsonResultWriter solrBatches(BatchOutput batchOutput, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        return new JsonResultWriter(null, batchOutput, batchSize);
+    }
+
+    /**
+     * Fields written as a single string, the first value, rather than an array.
+     */
+    public void setSingleValuedFields(Collection<String> singleValuedFields) {
+        this.singleValuedFields = new HashSet<>(singleValuedFields);
+    }
+
+    /**
+     * When set, the record's control number (001) is written first, under this name.  Values extracted under the
+     * same name are then left out, so a document never has the key twice.
+     */
+    public void setIdField(String idField) {
+        this.idField = idField;
+    }
+
+    @Override
+    public void accept(Record record, Map<String, List<String>> values) {
+        try {
+            write(record.getControlNumber(), values);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write values for " + record.getControlNumber(), e);
+        }
+    }
+
+    /**
+     * Writes the values of one record.  The id is only written when an id field is set.
+     */
+    public void write(String id, Map<String, List<String>> values) throws IOException {
+        JsonGenerator g = startDocument(id);
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            writeField(g, entry.getKey(), entry.getValue());
+        }
+        endDocument(g);
+    }
+
+    /**
+     * Writes the values of one record straight from a reusable result.
+     */
+    public void write(String id, ExtractionResult result) throws IOException {
+        JsonGenerator g = startDocument(id);
+        for (int i = 0; i < result.size(); i++) {
+            if (result.isMapped(i)) {
+                writeField(g, result.getName(i), result.getValues(i));
+            }
+        }
+        endDocument(g);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (generator != null) {
+            generator.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (batchOutput != null) {
+            endBatch();
+        } else if (generator != null) {
+            generator.close();
+            generator = null;
+        }
+    }
+
+    private JsonGenerator startDocument(String id) throws IOException {
+        if (generator == null) {
+            if (batchOutput != null) {
+                generator = factory.createGenerator(batchOutput.openBatch());
+                generator.writeStartArray();
+            } else {
+                generator = factory.createGenerator(out);
+            }
+        }
+        generator.writeStartObject();
+        idWritten = idField != null && id != null;
+        if (idWritten) {
+            generator.writeStringField(idField, id);
+        }
+        return generator;
+    }
+
+    private void writeField(JsonGenerator g, String name, List<String> values) throws IOException {
+        if (values == null || values.isEmpty() || (idWritten && name.equals(idField))) {
+            return;
+        }
+        if (singleValuedFields.contains(name)) {
+            g.writeStringField(name, values.get(0));
+        } else {
+            g.writeArrayFieldStart(name);
+            for (String value : values) {
+                g.writeString(value);
+            }
+            g.writeEndArray();
+        }
+    }
+
+    private void endDocument(JsonGenerator g) throws IOException {
+        g.writeEndObject();
+        if (batchOutput == null) {
+            g.writeRaw('\n');
+        } else if (++documentsInBatch >= batchSize) {
+            endBatch();
+        }
+    }
+
+    private void endBatch() throws IOException {
+        if (generator != null) {
+            generator.writeEndArray();
+            generator.close();
+            ((OutputStream) generator.getOutputTarget()).close();
+            generator = null;
+            documentsInBatch = 0;
+        }
+    }
+}
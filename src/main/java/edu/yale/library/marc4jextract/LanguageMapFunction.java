@@ -4,31 +4,37 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 
-import java.lang.reflect.Array;
 import java.util.*;
 
 public class LanguageMapFunction implements ExtractorFunction {
 
     @Override
     public void extractValues(RecordExtractor recordExtractor, List<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
         List<String> rawLanuageCodes = new ArrayList<>(values);
         values.clear();
+        Set<String> languageNames = new HashSet<>();
         for ( String rawLanguageCode : rawLanuageCodes ) {
-            String[] codes = rawLanguageCode.split(",");  // some marc records have comma separated lists
-            for ( String code : codes ) {
-                //  This split breaks a string into strings of length 3.
+            // some marc records have comma separated lists
+            int start = 0;
+            while (start <= rawLanguageCode.length()) {
+                int end = rawLanguageCode.indexOf(',', start);
+                if (end < 0) {
+                    end = rawLanguageCode.length();
+                }
+                //  Break the code into strings of length 3, ignoring anything left over.
                 //  From Traject:
                 //  # sometimes multiple language codes are jammed together in one subfield, and
                 //  # we need to separate ourselves. sigh.
-                String[] threeLetterCodes = code.split("(?<=\\G...)");
-                for ( String threeLetterCode : threeLetterCodes ) {
-                    if (threeLetterCode.length()==3) {
-                        String languageName = mapLanguageCode(threeLetterCode);
-                        if (languageName != null && !values.contains(languageName)) {
-                            values.add(languageName);
-                        }
+                for (int i = start; i + 3 <= end; i += 3) {
+                    String languageName = mapLanguageCode(rawLanguageCode, i);
+                    if (languageNames.add(languageName)) {
+                        values.add(languageName);
                     }
                 }
+                start = end + 1;
             }
         }
     }
@@ -43,29 +49,62 @@ public class LanguageMapFunction implements ExtractorFunction {
         return false;
     }
 
-    private static Map<String,String> languageCodeMap;
+    // names of the lower case codes, indexed by the letters of the code in base 26
+    private static final String[] languageNames = new String[26 * 26 * 26];
+    // the few codes that aren't three lower case letters, like "|||"
+    private static final Map<String, String> otherLanguageNames = new HashMap<>();
+    static {
+        for (Map.Entry<String, String> entry : loadLanguageCodeMap().entrySet()) {
+            String code = entry.getKey();
+            int index = code.length() == 3 ? index(code, 0) : -1;
+            if (index >= 0) {
+                languageNames[index] = entry.getValue();
+            } else {
+                otherLanguageNames.put(code, entry.getValue());
+            }
+        }
+    }
 
     public static String mapLanguageCode(String code) {
-        if ( languageCodeMap == null ) {
-            languageCodeMap = loadLanguageCodeMap();
-        }
-        String ret = languageCodeMap.get(code);
+        String ret = code.length() == 3 ? lookup(code, 0) : otherLanguageNames.get(code);
         return (ret != null) ? ret : code; // fall back to returning code if not found in map.
     }
 
+    // maps the three letter code at s[start, start + 3)
+    private static String mapLanguageCode(String s, int start) {
+        String ret = lookup(s, start);
+        return (ret != null) ? ret : s.substring(start, start + 3);
+    }
+
+    private static String lookup(String s, int start) {
+        int index = index(s, start);
+        return index >= 0 ? languageNames[index] : otherLanguageNames.get(s.substring(start, start + 3));
+    }
+
+    private static int index(String s, int start) {
+        int index = 0;
+        for (int i = start; i < start + 3; i++) {
+            int letter = s.charAt(i) - 'a';
+            if (letter < 0 || letter >= 26) {
+                return -1;
+            }
+            index = index * 26 + letter;
+        }
+        return index;
+    }
+
     private static Map<String, String> loadLanguageCodeMap() {
         ObjectMapper mapper = new ObjectMapper()
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        Map<String, String> languageMap = null;
         try {
-            languageMap = mapper.readValue(
+            return mapper.readValue(
                     Extractor.class.getClassLoader().getResourceAsStream("language-map.json"),
                     TypeFactory.defaultInstance()
                             .constructMapType(HashMap.class, String.class, String.class));
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Unable to load language map");
+            return Collections.emptyMap();
         }
-        return languageMap;
     }
 }
@@ -0,0 +1,145 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.MarcException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file of ISO 2709 records mapped into memory, with the offset of every record.
+ *
+ * A mapped buffer can't be larger than 2GB, so large files are mapped as several windows.
+ * Each window ends at a record boundary so no record is split between windows.
+ * The records are found by following the record lengths in the first five bytes of each record,
+ * without decoding anything else.
+ */
+class MappedMarcFile {
+
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    private final List<Window> windows = new ArrayList<>();
+    private int recordCount;
+
+    MappedMarcFile(Path path) throws IOException {
+        this(path, MAX_WINDOW_SIZE);
+    }
+
+    MappedMarcFile(Path path, int maxWindowSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = 0;
+            while (windowStart < size) {
+                long windowSize = Math.min(size - windowStart, maxWindowSize);
+                Window window = new Window(channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize), windowStart);
+                int end = window.indexRecords(windowStart + windowSize == size);
+                if (window.count == 0) {
+                    throw new MarcException("record at offset " + windowStart + " is larger than the window size");
+                }
+                windows.add(window);
+                recordCount += window.count;
+                windowStart += end;
+            }
+        }
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Splits the records into ranges of at most recordsPerRange records, in file order.
+     * Ranges never cross windows.
+     */
+    List<Range> split(int recordsPerRange) {
+        if (recordsPerRange < 1) {
+            throw new IllegalArgumentException("recordsPerRange must be at least 1");
+        }
+        List<Range> ranges = new ArrayList<>();
+        for (Window window : windows) {
+            for (int start = 0; start < window.count; start += recordsPerRange) {
+                ranges.add(new Range(window, start, Math.min(start + recordsPerRange, window.count)));
+            }
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    /**
+     * A run of consecutive records in one window.
+     */
+    static class Range {
+        private final Window window;
+        private final int start;
+        private final int end;
+
+        private Range(Window window, int start, int end) {
+            this.window = window;
+            this.start = start;
+            this.end = end;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        /**
+         * The buffer holding the records of this range.  It is shared, so only use absolute gets.
+         */
+        ByteBuffer getBuffer() {
+            return window.buffer;
+        }
+
+        int getOffset(int i) {
+            return window.offsets[start + i];
+        }
+    }
+
+    private static class Window {
+        private final MappedByteBuffer buffer;
+        private final long fileOffset;
+        private int[] offsets = new int[1024];
+        private int count;
+
+        Window(MappedByteBuffer buffer, long fileOffset) {
+            this.buffer = buffer;
+            this.fileOffset = fileOffset;
+        }
+
+        // Records the offset of every record that fits in the window and returns where the last one ends.
+        int indexRecords(boolean endOfFile) {
+            int limit = buffer.limit();
+            int offset = 0;
+            while (offset < limit) {
+                if (limit - offset < 5) {
+                    if (endOfFile) {
+                        throw new MarcException("unexpected end of file at offset " + (fileOffset + offset));
+                    }
+                    break;
+                }
+                int length = RawRecordParser.recordLength(buffer, offset);
+                if (length < RawRecordParser.LEADER_LENGTH + 1) {
+                    throw new MarcException("invalid record length at offset " + (fileOffset + offset) + ": " + length);
+                }
+                if (length > limit - offset) {
+                    if (endOfFile) {
+                        throw new MarcException("unexpected end of file at offset " + (fileOffset + offset));
+                    }
+                    break;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = offset;
+                offset += length;
+            }
+            return offset;
+        }
+    }
+}
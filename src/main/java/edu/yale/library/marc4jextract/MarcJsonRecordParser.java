@@ -0,0 +1,174 @@
+package edu.yale.library.marc4jextract;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.marc4j.MarcException;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads MARC-in-JSON records with Jackson's streaming parser, building only the fields an ExtractionPlan reads.
+ *
+ * Like RawRecordParser, the resulting records only hold those fields and the 001 and 005 control fields, with the
+ * same data MarcJsonReader would give them, so extracting from them gives the same values.  The values of other
+ * fields are skipped without creating any objects.  The input can be a single record, records one after another
+ * (as MarcJsonWriter and newline delimited JSON write them), or an array of records.
+ */
+class MarcJsonRecordParser {
+
+    private static final MarcFactory factory = MarcFactory.newInstance();
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final ExtractionPlan plan;
+    private final JsonParser parser;
+
+    MarcJsonRecordParser(ExtractionPlan plan, InputStream in) throws IOException {
+        this(plan, jsonFactory.createParser(in));
+    }
+
+    MarcJsonRecordParser(ExtractionPlan plan, String json) throws IOException {
+        this(plan, jsonFactory.createParser(json));
+    }
+
+    private MarcJsonRecordParser(ExtractionPlan plan, JsonParser parser) {
+        this.plan = plan;
+        this.parser = parser;
+    }
+
+    /**
+     * The next record, or null at the end of the input.
+     */
+    Record next() throws IOException {
+        try {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT) {
+                    return parseRecord();
+                }
+                if (token != JsonToken.START_ARRAY && token != JsonToken.END_ARRAY) {
+                    throw new MarcException("expected a MARC-in-JSON record but found " + token);
+                }
+            }
+            return null;
+        } catch (JsonProcessingException e) {
+            throw new MarcException("error parsing MARC-in-JSON", e);
+        }
+    }
+
+    private Record parseRecord() throws IOException {
+        Record record = factory.newRecord();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (name.equals("leader") && token.isScalarValue()) {
+                record.setLeader(factory.newLeader(text()));
+            } else if (name.equals("fields") && token == JsonToken.START_ARRAY) {
+                parseFields(record);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return record;
+    }
+
+    private void parseFields(Record record) throws IOException {
+        boolean loadControls = plan.isControlFieldDependent();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            // each field is an object with the tag as its only key
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String tag = parser.getCurrentName();
+                token = parser.nextToken();
+                if (!isTag(tag)) {
+                    parser.skipChildren();
+                } else if (token == JsonToken.START_OBJECT) {
+                    if (plan.isDataFieldTag(tag)) {
+                        record.addVariableField(parseDataField(tag));
+                    } else {
+                        parser.skipChildren();
+                    }
+                } else if (token.isScalarValue()) {
+                    if (loadControls || RawRecordParser.isKeyTag(tag)) {
+                        record.addVariableField(factory.newControlField(tag, text()));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private DataField parseDataField(String tag) throws IOException {
+        // indicators can follow the subfields, and are left as the factory has them when missing, as MarcJsonReader does
+        DataField dataField = factory.newDataField();
+        dataField.setTag(tag);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (name.equals("ind1") && token.isScalarValue()) {
+                dataField.setIndicator1(indicator());
+            } else if (name.equals("ind2") && token.isScalarValue()) {
+                dataField.setIndicator2(indicator());
+            } else if (name.equals("subfields") && token == JsonToken.START_ARRAY) {
+                parseSubfields(dataField);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return dataField;
+    }
+
+    private void parseSubfields(DataField dataField) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            // each subfield is an object with the code as its only key
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String code = parser.getCurrentName();
+                token = parser.nextToken();
+                if (isCode(code) && token.isScalarValue()) {
+                    dataField.addSubfield(factory.newSubfield(code.charAt(0), text()));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private char indicator() throws IOException {
+        String indicator = text();
+        return indicator.isEmpty() ? ' ' : indicator.charAt(0);
+    }
+
+    // MarcJsonReader reads a fraction slash as a slash
+    private String text() throws IOException {
+        String text = parser.getText();
+        return text.indexOf('\u2044') < 0 ? text : text.replace('\u2044', '/');
+    }
+
+    // the tags and subfield codes MarcJsonReader accepts, the others are dropped
+    private static boolean isTag(String tag) {
+        return tag.length() == 3 && isTagChar(tag.charAt(0)) && isTagChar(tag.charAt(1)) && isTagChar(tag.charAt(2));
+    }
+
+    private static boolean isTagChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isCode(String code) {
+        return code.length() == 1 && ((code.charAt(0) >= 'a' && code.charAt(0) <= 'z') || (code.charAt(0) >= '0' && code.charAt(0) <= '9'));
+    }
+}
@@ -0,0 +1,141 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.MarcException;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * Reads MARCXML records with StAX, building only the fields an ExtractionPlan reads.
+ *
+ * Like RawRecordParser, the resulting records only hold those fields and the 001 and 005 control fields, with the
+ * same data MarcXmlReader would give them, so extracting from them gives the same values.  The elements of other
+ * fields are skipped without creating any objects.  Element names are matched without their namespace, so both
+ * a collection and a single record, with or without the MARC21 slim namespace, can be read.
+ */
+class MarcXmlRecordParser {
+
+    private static final MarcFactory factory = MarcFactory.newInstance();
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    static {
+        // MARCXML needs neither, and external entities shouldn't be fetched while indexing
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final ExtractionPlan plan;
+    private final XMLStreamReader reader;
+
+    MarcXmlRecordParser(ExtractionPlan plan, InputStream in) {
+        this.plan = plan;
+        try {
+            this.reader = inputFactory.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new MarcException("unable to read MARCXML", e);
+        }
+    }
+
+    /**
+     * The next record, or null at the end of the document.
+     */
+    Record next() {
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("record")) {
+                    return parseRecord();
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new MarcException("error parsing MARCXML", e);
+        }
+    }
+
+    private Record parseRecord() throws XMLStreamException {
+        Record record = factory.newRecord();
+        boolean loadControls = plan.isControlFieldDependent();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("record")) {
+                return record;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "leader":
+                    record.setLeader(factory.newLeader(reader.getElementText()));
+                    break;
+                case "controlfield": {
+                    String tag = reader.getAttributeValue(null, "tag");
+                    if (tag != null && (loadControls || RawRecordParser.isKeyTag(tag))) {
+                        ControlField controlField = factory.newControlField(tag);
+                        controlField.setData(reader.getElementText());
+                        record.addVariableField(controlField);
+                    } else {
+                        skipElement();
+                    }
+                    break;
+                }
+                case "datafield": {
+                    String tag = reader.getAttributeValue(null, "tag");
+                    if (tag != null && plan.isDataFieldTag(tag)) {
+                        record.addVariableField(parseDataField(tag));
+                    } else {
+                        skipElement();
+                    }
+                    break;
+                }
+                default:
+                    skipElement();
+                    break;
+            }
+        }
+        throw new MarcException("unexpected end of MARCXML in a record");
+    }
+
+    private DataField parseDataField(String tag) throws XMLStreamException {
+        DataField dataField = factory.newDataField(tag, indicator("ind1"), indicator("ind2"));
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return dataField;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String code = reader.getLocalName().equals("subfield") ? reader.getAttributeValue(null, "code") : null;
+            if (code == null) {
+                skipElement(); // MarcXmlReader drops subfields without a code too
+                continue;
+            }
+            dataField.addSubfield(factory.newSubfield(code.isEmpty() ? ' ' : code.charAt(0), reader.getElementText()));
+        }
+        throw new MarcException("unexpected end of MARCXML in field " + tag);
+    }
+
+    private char indicator(String name) {
+        String indicator = reader.getAttributeValue(null, name);
+        return indicator == null || indicator.isEmpty() ? ' ' : indicator.charAt(0);
+    }
+
+    // Skips to the end of the current element.
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
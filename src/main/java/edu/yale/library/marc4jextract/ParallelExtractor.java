@@ -0,0 +1,178 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.MarcReader;
+import org.marc4j.marc.Record;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts records from a MarcReader or a mapped file on a pool of worker threads.
+ *
+ * Results are passed to the sink on the calling thread, as are records read from a MarcReader, so neither
+ * the reader nor the sink need to be thread safe.  The number of records waiting to be extracted is bounded so the
+ * reader is never far ahead of the sink.
+ */
+class ParallelExtractor {
+
+    // a task is one record from a reader or one range of records from a mapped file
+    private static final int TASKS_IN_FLIGHT_PER_THREAD = 4;
+    private static final int RECORDS_PER_RANGE = 1000;
+
+    private final JsonExtractionSpec spec;
+    private final int threads;
+    private final boolean ordered;
+
+    ParallelExtractor(JsonExtractionSpec spec, int threads, boolean ordered) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.spec = spec;
+        this.threads = threads;
+        this.ordered = ordered;
+    }
+
+    void extractAll(MarcReader reader, ResultSink sink) throws InterruptedException {
+        run(new Iterator<Callable<List<Result>>>() {
+            @Override
+            public boolean hasNext() {
+                return reader.hasNext();
+            }
+
+            @Override
+            public Callable<List<Result>> next() {
+                Record record = reader.next();
+                return () -> Collections.singletonList(new Result(record, spec.extractValues(record)));
+            }
+        }, sink);
+    }
+
+    /**
+     * Extracts the records of a mapped file.  The workers parse their own ranges of records straight
+     * from the mapped buffers, so nothing is read on the calling thread.
+     */
+    void extractAll(MappedMarcFile file, ResultSink sink) throws InterruptedException {
+        int recordsPerRange = Math.max(1, Math.min(RECORDS_PER_RANGE, file.getRecordCount() / (threads * TASKS_IN_FLIGHT_PER_THREAD)));
+        Iterator<MappedMarcFile.Range> ranges = file.split(recordsPerRange).iterator();
+        run(new Iterator<Callable<List<Result>>>() {
+            @Override
+            public boolean hasNext() {
+                return ranges.hasNext();
+            }
+
+            @Override
+            public Callable<List<Result>> next() {
+                MappedMarcFile.Range range = ranges.next();
+                return () -> {
+                    RawRecordParser parser = spec.newRawRecordParser();
+                    List<Result> results = new ArrayList<>(range.size());
+                    for (int i = 0; i < range.size(); i++) {
+                        Record record = parser.parse(range.getBuffer(), range.getOffset(i));
+                        results.add(new Result(record, spec.extractValues(record)));
+                    }
+                    return results;
+                };
+            }
+        }, sink);
+    }
+
+    private void run(Iterator<Callable<List<Result>>> tasks, ResultSink sink) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+        try {
+            if (ordered) {
+                runOrdered(executor, tasks, sink);
+            } else {
+                runUnordered(executor, tasks, sink);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runOrdered(ExecutorService executor, Iterator<Callable<List<Result>>> tasks, ResultSink sink) throws InterruptedException {
+        int maxInFlight = threads * TASKS_IN_FLIGHT_PER_THREAD;
+        Deque<Future<List<Result>>> pending = new ArrayDeque<>(maxInFlight);
+        while (tasks.hasNext()) {
+            pending.add(executor.submit(tasks.next()));
+            if (pending.size() >= maxInFlight) {
+                deliver(pending.poll(), sink);
+            }
+        }
+        while (!pending.isEmpty()) {
+            deliver(pending.poll(), sink);
+        }
+    }
+
+    private void runUnordered(ExecutorService executor, Iterator<Callable<List<Result>>> tasks, ResultSink sink) throws InterruptedException {
+        int maxInFlight = threads * TASKS_IN_FLIGHT_PER_THREAD;
+        CompletionService<List<Result>> completionService = new ExecutorCompletionService<>(executor);
+        int inFlight = 0;
+        while (tasks.hasNext()) {
+            completionService.submit(tasks.next());
+            inFlight++;
+            Future<List<Result>> done;
+            while ((done = (inFlight >= maxInFlight) ? completionService.take() : completionService.poll()) != null) {
+                inFlight--;
+                deliver(done, sink);
+            }
+        }
+        while (inFlight > 0) {
+            deliver(completionService.take(), sink);
+            inFlight--;
+        }
+    }
+
+    private void deliver(Future<List<Result>> future, ResultSink sink) throws InterruptedException {
+        List<Result> results;
+        try {
+            results = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Extraction failed", cause);
+        }
+        for (Result result : results) {
+            sink.accept(result.record, result.values);
+        }
+    }
+
+    private static class Result {
+        private final Record record;
+        private final Map<String, List<String>> values;
+
+        Result(Record record, Map<String, List<String>> values) {
+            this.record = record;
+            this.values = values;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "marc4jextract-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
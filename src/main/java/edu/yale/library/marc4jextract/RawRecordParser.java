@@ -0,0 +1,265 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.MarcException;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
+import org.marc4j.marc.Record;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses ISO 2709 records straight from their bytes, decoding only the fields an ExtractionPlan reads.
+ *
+ * The resulting record only holds those fields and the 001 and 005 control fields, but they are decoded the same way MarcStreamReader
+ * decodes them, so extracting from it gives the same values as extracting from the full record.
+ * Fields are added in the order of their position in the record, as MarcStreamReader does.
+ * A parser keeps the character set of the previous record it parsed for records that don't specify one, so
+ * only a single parser reading a whole stream decodes every record the way MarcStreamReader does; parsers
+ * given parts of it, like ParallelExtractor's ranges, start out with ISO-8859-1.  Use one parser per thread.
+ */
+class RawRecordParser {
+
+    static final int LEADER_LENGTH = 24;
+    private static final int DIRECTORY_ENTRY_LENGTH = 12;
+    private static final byte SUBFIELD_DELIMITER = 0x1F;
+    private static final byte FIELD_TERMINATOR = 0x1E;
+
+    private static final MarcFactory factory = MarcFactory.newInstance();
+
+    private final ExtractionPlan plan;
+    // like MarcStreamReader, records that are neither MARC-8 nor UTF-8 keep the previous record's encoding
+    private Charset charset = StandardCharsets.ISO_8859_1;
+    private byte[] bytes;
+    private byte[] recordBytes;
+    private ByteBuffer view;
+    private ByteBuffer viewSource;
+    private int[] fieldStarts = new int[64];
+    private int[] fieldOrder = new int[64];
+
+    RawRecordParser(ExtractionPlan plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * Reads the record length from the first five bytes of the record at offset.
+     */
+    static int recordLength(ByteBuffer buffer, int offset) {
+        return parseNumber(buffer, offset, 5, "unable to parse record length");
+    }
+
+    /**
+     * Reads the next record from the stream, or returns null at the end of the stream.
+     * The returned buffer is reused by the next call.
+     */
+    ByteBuffer readRecord(InputStream in) throws IOException {
+        if (recordBytes == null) {
+            recordBytes = new byte[4096];
+        }
+        int read = readFully(in, recordBytes, 0, 5);
+        if (read == 0) {
+            return null;
+        }
+        if (read < 5) {
+            throw new MarcException("unexpected end of stream reading record length");
+        }
+        int recordLength = recordLength(ByteBuffer.wrap(recordBytes, 0, 5), 0);
+        if (recordLength < LEADER_LENGTH + 1) {
+            throw new MarcException("invalid record length: " + recordLength);
+        }
+        if (recordBytes.length < recordLength) {
+            recordBytes = Arrays.copyOf(recordBytes, Math.max(recordLength, recordBytes.length * 2));
+        }
+        if (readFully(in, recordBytes, 5, recordLength - 5) < recordLength - 5) {
+            throw new MarcException("unexpected end of stream reading record");
+        }
+        return ByteBuffer.wrap(recordBytes, 0, recordLength);
+    }
+
+    Record parse(ByteBuffer buffer) {
+        return parse(buffer, buffer.position());
+    }
+
+    Record parse(ByteBuffer buffer, int offset) {
+        int recordLength = recordLength(buffer, offset);
+        if (recordLength < LEADER_LENGTH + 1 || offset + recordLength > buffer.limit()) {
+            throw new MarcException("invalid record length: " + recordLength);
+        }
+        String leader = decode(buffer, offset, LEADER_LENGTH, StandardCharsets.ISO_8859_1);
+        Record record = factory.newRecord(factory.newLeader(leader));
+        switch (leader.charAt(9)) {
+            case ' ':
+                charset = StandardCharsets.ISO_8859_1;
+                break;
+            case 'a':
+                charset = StandardCharsets.UTF_8;
+                break;
+            default:
+                break;
+        }
+        int baseAddress = parseNumber(buffer, offset + 12, 5, "unable to parse base address of data");
+        int directoryLength = baseAddress - LEADER_LENGTH - 1;
+        if (directoryLength < 0 || directoryLength % DIRECTORY_ENTRY_LENGTH != 0 || baseAddress > recordLength) {
+            throw new MarcException("invalid directory");
+        }
+        int entries = directoryLength / DIRECTORY_ENTRY_LENGTH;
+        int directory = offset + LEADER_LENGTH;
+        sortByStart(buffer, directory, entries);
+
+        boolean loadControls = plan.isControlFieldDependent();
+        for (int i = 0; i < entries; i++) {
+            int entry = directory + fieldOrder[i] * DIRECTORY_ENTRY_LENGTH;
+            // numeric tags, nearly all of them, are checked before making a string of them
+            int tagNumber = tagNumber(buffer, entry);
+            boolean control = tagNumber >= 0 && tagNumber < 10;
+            if (control ? !(loadControls || isKeyTag(tagNumber)) || tagNumber == 0
+                    : tagNumber >= 0 && !plan.isDataFieldTag(tagNumber)) {
+                continue;
+            }
+            String tag = decode(buffer, entry, 3, StandardCharsets.ISO_8859_1);
+            if (tagNumber < 0 && !plan.isDataFieldTag(tag)) {
+                continue;
+            }
+            int length = parseNumber(buffer, entry + 3, 4, "unable to parse field length");
+            int start = offset + baseAddress + fieldStarts[i];
+            if (start + length > offset + recordLength) {
+                throw new MarcException("field " + tag + " extends past the end of the record");
+            }
+            if (control) {
+                ControlField controlField = factory.newControlField(tag);
+                controlField.setData(decode(buffer, start, Math.max(length - 1, 0), charset));
+                record.addVariableField(controlField);
+            } else {
+                record.addVariableField(parseDataField(tag, buffer, start, start + length));
+            }
+        }
+        return record;
+    }
+
+    private DataField parseDataField(String tag, ByteBuffer buffer, int start, int end) {
+        char indicator1 = start < end ? (char) (buffer.get(start) & 0xFF) : (char) -1;
+        char indicator2 = start + 1 < end ? (char) (buffer.get(start + 1) & 0xFF) : (char) -1;
+        DataField dataField = factory.newDataField(tag, indicator1, indicator2);
+        int i = start + 2;
+        while (i < end) {
+            if (buffer.get(i++) != SUBFIELD_DELIMITER) {
+                continue;
+            }
+            if (i >= end) {
+                throw new MarcException("error parsing data field for tag: " + tag + ", unexpected end of data field");
+            }
+            byte code = buffer.get(i++);
+            if (code == FIELD_TERMINATOR) {
+                continue;
+            }
+            int dataStart = i;
+            while (i < end && buffer.get(i) != SUBFIELD_DELIMITER && buffer.get(i) != FIELD_TERMINATOR) {
+                i++;
+            }
+            if (i >= end) {
+                throw new MarcException("error parsing data field for tag: " + tag + ", subfield not terminated");
+            }
+            dataField.addSubfield(factory.newSubfield((char) (code & 0xFF), decode(buffer, dataStart, i - dataStart, charset)));
+        }
+        return dataField;
+    }
+
+    // Fills fieldOrder with the directory entry indexes ordered by the start of their data, and fieldStarts to match.
+    private void sortByStart(ByteBuffer buffer, int directory, int entries) {
+        if (fieldStarts.length < entries) {
+            fieldStarts = new int[entries];
+            fieldOrder = new int[entries];
+        }
+        boolean sorted = true;
+        for (int i = 0; i < entries; i++) {
+            fieldStarts[i] = parseNumber(buffer, directory + i * DIRECTORY_ENTRY_LENGTH + 7, 5, "unable to parse field start");
+            fieldOrder[i] = i;
+            sorted = sorted && (i == 0 || fieldStarts[i] >= fieldStarts[i - 1]);
+        }
+        if (!sorted) {
+            // rare, so sorting boxed indexes is fine
+            Integer[] order = new Integer[entries];
+            for (int i = 0; i < entries; i++) {
+                order[i] = i;
+            }
+            int[] starts = Arrays.copyOf(fieldStarts, entries);
+            Arrays.sort(order, (a, b) -> Integer.compare(starts[a], starts[b]));
+            for (int i = 0; i < entries; i++) {
+                fieldOrder[i] = order[i];
+                fieldStarts[i] = starts[order[i]];
+            }
+        }
+    }
+
+    private String decode(ByteBuffer buffer, int start, int length, Charset charset) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, charset);
+        }
+        if (bytes == null || bytes.length < length) {
+            bytes = new byte[Math.max(length, 256)];
+        }
+        if (view == null || viewSource != buffer) {
+            // a view of the buffer so its position can be used for bulk gets
+            view = buffer.duplicate();
+            viewSource = buffer;
+        }
+        ((Buffer) view).position(start);
+        view.get(bytes, 0, length);
+        return new String(bytes, 0, length, charset);
+    }
+
+    private static int readFully(InputStream in, byte[] b, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(b, offset + total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int parseNumber(ByteBuffer buffer, int start, int length, String error) {
+        if (start + length > buffer.limit()) {
+            throw new MarcException(error);
+        }
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new MarcException(error);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // The number of a three digit tag, or -1 for other tags.
+    private static int tagNumber(ByteBuffer buffer, int start) {
+        int number = 0;
+        for (int i = start; i < start + 3; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    // the control number and date of latest transaction are always kept, they identify the record for a ResultStore
+    static boolean isKeyTag(String tag) {
+        return tag.equals("001") || tag.equals("005");
+    }
+
+    private static boolean isKeyTag(int tagNumber) {
+        return tagNumber == 1 || tagNumber == 5;
+    }
+}
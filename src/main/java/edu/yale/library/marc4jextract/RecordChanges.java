@@ -0,0 +1,167 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The tags whose fields differ between two versions of a record.
+ *
+ * Fields are compared tag by tag in record order.  880 fields are compared under the tag they are linked
+ * to in $6, as that's where extraction uses them.  Fields that only moved relative to fields with other tags
+ * are not changed, but since values are extracted in record order, isReordered tells whether the order of
+ * the fields of a set of tags changed.
+ */
+class RecordChanges {
+
+    private static final String LINKED_880_PREFIX = "880:";
+
+    private final Set<String> changedTags = new HashSet<>();
+    private boolean controlFieldChanged = false;
+    // the tag of every field in record order, only kept when the order differs
+    private List<String> oldTagOrder;
+    private List<String> newTagOrder;
+
+    RecordChanges(Record oldRecord, Record newRecord) {
+        List<String> oldTags = new ArrayList<>();
+        List<String> newTags = new ArrayList<>();
+        Map<String, List<VariableField>> oldFields = fieldsByTag(oldRecord, oldTags);
+        Map<String, List<VariableField>> newFields = fieldsByTag(newRecord, newTags);
+        if (!oldTags.equals(newTags)) {
+            oldTagOrder = oldTags;
+            newTagOrder = newTags;
+        }
+        Set<String> tags = new HashSet<>(oldFields.keySet());
+        tags.addAll(newFields.keySet());
+        for (String tag : tags) {
+            if (!sameFields(oldFields.get(tag), newFields.get(tag))) {
+                changedTags.add(tag);
+                controlFieldChanged = controlFieldChanged || (!tag.startsWith(LINKED_880_PREFIX) && tag.startsWith("00"));
+            }
+        }
+    }
+
+    /**
+     * True if the fields with this tag, or the 880s linked to them, changed.
+     */
+    boolean isChanged(String tag) {
+        if (tag.indexOf('X') >= 0) {
+            for (String changedTag : changedTags) {
+                if (Extractor.tagMatches(tag, unlinked(changedTag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return changedTags.contains(tag) || changedTags.contains(LINKED_880_PREFIX + tag);
+    }
+
+    boolean isControlFieldChanged() {
+        return controlFieldChanged;
+    }
+
+    /**
+     * True if the fields with these tags, including linked 880s, are in a different order.
+     */
+    boolean isReordered(Set<String> tags) {
+        // a single tag can't be reordered, but a tag pattern like 6XX can
+        boolean severalTags = tags.size() > 1 || tags.stream().anyMatch(tag -> tag.indexOf('X') >= 0);
+        return oldTagOrder != null && severalTags && !filter(oldTagOrder, tags).equals(filter(newTagOrder, tags));
+    }
+
+    private static List<String> filter(List<String> tagOrder, Set<String> tags) {
+        List<String> filtered = new ArrayList<>();
+        for (String tag : tagOrder) {
+            if (isIncluded(tags, unlinked(tag))) {
+                filtered.add(tag);
+            }
+        }
+        return filtered;
+    }
+
+    private static boolean isIncluded(Set<String> tags, String tag) {
+        if (tags.contains(tag)) {
+            return true;
+        }
+        for (String pattern : tags) {
+            if (pattern.indexOf('X') >= 0 && Extractor.tagMatches(pattern, tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String unlinked(String tag) {
+        return tag.startsWith(LINKED_880_PREFIX) ? tag.substring(LINKED_880_PREFIX.length()) : tag;
+    }
+
+    private static Map<String, List<VariableField>> fieldsByTag(Record record, List<String> tagOrder) {
+        Map<String, List<VariableField>> fields = new HashMap<>();
+        for (ControlField field : record.getControlFields()) {
+            fields.computeIfAbsent(field.getTag(), tag -> new ArrayList<>()).add(field);
+            tagOrder.add(field.getTag());
+        }
+        for (DataField field : record.getDataFields()) {
+            String key = field.getTag();
+            if (key.equals("880")) {
+                Subfield linkage = field.getSubfield('6');
+                if (linkage == null || linkage.getData().length() < 3) {
+                    continue; // never extracted
+                }
+                key = LINKED_880_PREFIX + linkage.getData().substring(0, 3);
+            }
+            fields.computeIfAbsent(key, tag -> new ArrayList<>()).add(field);
+            tagOrder.add(key);
+        }
+        return fields;
+    }
+
+    private static boolean sameFields(List<VariableField> a, List<VariableField> b) {
+        if (a == null || b == null || a.size() != b.size()) {
+            return a == b;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!sameField(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameField(VariableField a, VariableField b) {
+        if (a instanceof ControlField) {
+            return b instanceof ControlField && Objects.equals(((ControlField) a).getData(), ((ControlField) b).getData());
+        }
+        if (!(a instanceof DataField) || !(b instanceof DataField)) {
+            return false;
+        }
+        DataField fieldA = (DataField) a;
+        DataField fieldB = (DataField) b;
+        if (fieldA.getIndicator1() != fieldB.getIndicator1() || fieldA.getIndicator2() != fieldB.getIndicator2()) {
+            return false;
+        }
+        List<Subfield> subfieldsA = fieldA.getSubfields();
+        List<Subfield> subfieldsB = fieldB.getSubfields();
+        if (subfieldsA.size() != subfieldsB.size()) {
+            return false;
+        }
+        for (int i = 0; i < subfieldsA.size(); i++) {
+            Subfield subfieldA = subfieldsA.get(i);
+            Subfield subfieldB = subfieldsB.get(i);
+            if (subfieldA.getCode() != subfieldB.getCode() || !Objects.equals(subfieldA.getData(), subfieldB.getData())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,5 @@
 package edu.yale.library.marc4jextract;
 
-import org.apache.commons.lang3.StringUtils;
 import org.marc4j.marc.Record;
 import org.marc4j.marc.DataField;
 import org.marc4j.marc.ControlField;
@@ -12,92 +11,245 @@ import java.util.*;
 class RecordExtractor {
 
     private Record record;
-    Map<String, List<DataField>> dataFields = new HashMap<>();
-    Map<String, List<DataField>> linked880s = new HashMap<>();
-    Map<String, ControlField> controlFields;
+    // the current record's fields by tag, each indexed the first time an extractor asks for it
+    private final Map<String, List<DataField>> dataFields = new HashMap<>();
+    private final Map<String, List<DataField>> linked880s = new HashMap<>();
+    private final Map<String, ControlField> controlFields = new HashMap<>();
+    // the tags with fields in dataFields and linked880s for the current record, for matching tag patterns
+    private final List<String> presentDataTags = new ArrayList<>();
+    private final List<String> presentLinked880Tags = new ArrayList<>();
+    // the 880s found while indexing the data fields, linked to their tags only when 880s are asked for
+    private final List<DataField> unlinked880s = new ArrayList<>();
+    private boolean dataFieldsIndexed = false;
+    private boolean linked880sIndexed = false;
+    private boolean controlFieldsIndexed = false;
+    // position of each loaded field in the record, kept here rather than on the shared marc4j fields
+    private final Map<VariableField, Long> fieldIds = new IdentityHashMap<>();
+    // scratch space for joining subfields, reused for every field of every record
+    final List<Subfield> subfieldBuffer = new ArrayList<>();
+    final StringBuilder valueBuilder = new StringBuilder();
+    // raw values of the components shared by several extractors of the plan, by slot, extracted on first use
+    private ExtractionPlan plan;
+    private List<Extractor.ValueAndId>[] sharedValues = newValueLists(0);
+    private boolean[] sharedExtracted = new boolean[0];
+
+    RecordExtractor() {
+    }
 
     public RecordExtractor(Record record) {
         this.record = record;
     }
 
     public Map<String, List<String>> extractValues(List<Extractor> extractors) {
+        return extractValues(new ExtractionPlan(extractors));
+    }
+
+    Map<String, List<String>> extractValues(ExtractionPlan plan) {
+        return extractValues(plan, null);
+    }
+
+    // The listener, when not null, is told how long each extractor took and how many values it produced.
+    Map<String, List<String>> extractValues(ExtractionPlan plan, ExtractionListener listener) {
         Map<String, List<String>> ret = new HashMap<>();
-        loadInterestingFields(extractors);
-        for (Extractor extractor : extractors) {
-            List<String> v = extractor.extractValues(this);
-            if (v != null && !v.isEmpty()) {
-                ret.put(extractor.getName(), v);
+        try {
+            startRecord(plan);
+            List<Extractor> extractors = plan.getExtractors();
+            for (int i = 0; i < extractors.size(); i++) {
+                List<String> v = new ArrayList<>();
+                run(extractors.get(i), i, v, listener);
+                if (!v.isEmpty()) {
+                    ret.put(extractors.get(i).getName(), v);
+                }
             }
+        } finally {
+            clearFields();
         }
         return ret;
     }
 
-    private void loadInterestingFields(List<Extractor> extractors) {
-        Set<String> fieldTags = new HashSet<>();
-        boolean hasControls = false;
-        for (Extractor extractor : extractors) {
-            if (extractor.extractorComponentList != null) {
-                for (Extractor.ExtractorComponent component : extractor.extractorComponentList) {
-                    if (!component.isControl()) {
-                        fieldTags.add(component.fieldTag);
-                    } else {
-                        hasControls = true;
-                    }
-                }
-            }
-            String extractFunctionName = extractor.getExtractFunction();
-            if ( !StringUtils.isEmpty(extractFunctionName) ) {
-                ExtractorFunction extractFunction = FunctionMap.get(extractFunctionName);
-                if ( extractFunction != null ) {
-                    fieldTags.addAll(extractFunction.getDependentFields());
-                    hasControls = hasControls || extractFunction.isControlFieldDependent();
-                }
+    // Fills the result, which must have been made for this plan, reusing its value lists.
+    void extractValues(Record record, ExtractionPlan plan, ExtractionListener listener, ExtractionResult result) {
+        this.record = record;
+        try {
+            startRecord(plan);
+            List<Extractor> extractors = plan.getExtractors();
+            for (int i = 0; i < extractors.size(); i++) {
+                run(extractors.get(i), i, result.clearedValues(i), listener);
             }
+        } finally {
+            clearFields();
+            this.record = null;
+        }
+    }
+
+    private void run(Extractor extractor, int ordinal, List<String> values, ExtractionListener listener) {
+        int[] componentSlots = plan.getComponentSlots(ordinal);
+        if (listener == null) {
+            extractor.extractValues(this, values, componentSlots);
+        } else {
+            long start = System.nanoTime();
+            extractor.extractValues(this, values, componentSlots);
+            listener.extracted(extractor.getName(), System.nanoTime() - start, values.size());
+        }
+    }
+
+    // Extracts from the given record, reusing the field lists built for previous records.
+    Map<String, List<String>> extractValues(Record record, ExtractionPlan plan) {
+        return extractValues(record, plan, null);
+    }
+
+    Map<String, List<String>> extractValues(Record record, ExtractionPlan plan, ExtractionListener listener) {
+        this.record = record;
+        try {
+            return extractValues(plan, listener);
+        } finally {
+            this.record = null;
+        }
+    }
+
+    private void clearFields() {
+        // keep the lists so the next record can reuse them, but drop the references to this record's fields
+        for (List<DataField> fields : dataFields.values()) {
+            fields.clear();
+        }
+        for (List<DataField> fields : linked880s.values()) {
+            fields.clear();
+        }
+        controlFields.clear();
+        presentDataTags.clear();
+        presentLinked880Tags.clear();
+        unlinked880s.clear();
+        dataFieldsIndexed = false;
+        linked880sIndexed = false;
+        controlFieldsIndexed = false;
+        for (int i = 0; i < sharedValues.length; i++) {
+            sharedValues[i].clear();
+            sharedExtracted[i] = false;
+        }
+        plan = null;
+        fieldIds.clear();
+        subfieldBuffer.clear();
+    }
+
+    // The raw values of a component shared by several extractors of the plan.
+    List<Extractor.ValueAndId> sharedComponentValues(int slot, Extractor.ExtractorComponent component) {
+        List<Extractor.ValueAndId> values = sharedValues[slot];
+        if (!sharedExtracted[slot]) {
+            component.extract(this, values);
+            sharedExtracted[slot] = true;
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Extractor.ValueAndId>[] newValueLists(int size) {
+        List<Extractor.ValueAndId>[] lists = new List[size];
+        for (int i = 0; i < size; i++) {
+            lists[i] = new ArrayList<>();
         }
-        fieldTags.add("880");
-        String tags[] = fieldTags.toArray(new String[fieldTags.size()]);
-        List<VariableField> fields = record.getVariableFields(tags);
+        return lists;
+    }
+
+    // The data fields other than 880s with this tag, or null.
+    List<DataField> getDataFields(String tag) {
+        indexDataFields();
+        return dataFields.get(tag);
+    }
+
+    // The 880s linked to fields with this tag, or null.
+    List<DataField> getLinked880s(String tag) {
+        indexLinked880s();
+        return linked880s.get(tag);
+    }
+
+    ControlField getControlField(String tag) {
+        indexControlFields();
+        return controlFields.get(tag);
+    }
+
+    List<String> getPresentDataTags() {
+        indexDataFields();
+        return presentDataTags;
+    }
+
+    List<String> getPresentLinked880Tags() {
+        indexLinked880s();
+        return presentLinked880Tags;
+    }
+
+    // Only meaningful for fields returned by this RecordExtractor, which have been indexed.
+    long getFieldId(VariableField field) {
+        Long id = fieldIds.get(field);
+        return id != null ? id : 0;
+    }
+
+    // The fields themselves are indexed when extractors first ask for them.
+    private void startRecord(ExtractionPlan plan) {
+        this.plan = plan;
+        if (sharedValues.length < plan.getSharedComponentCount()) {
+            sharedValues = newValueLists(plan.getSharedComponentCount());
+            sharedExtracted = new boolean[sharedValues.length];
+        }
+    }
+
+    private void indexDataFields() {
+        if (dataFieldsIndexed) {
+            return;
+        }
+        dataFieldsIndexed = true;
         long ix = 0;
-        for (VariableField field : fields) {
-            if (field instanceof DataField) {
-                field.setId(ix++);
-                if (field.getTag().equals("880")) {
-                    Subfield subfield = ((DataField) field).getSubfield('6');
-                    if (subfield != null ) {
-                        String linkage = subfield.getData();
-                        String fldId = linkage.substring(0, 3);
-                        if (fieldTags.contains(fldId)) {  // only store ones related to fields we're interested in
-                            linked880s.compute(fldId, (s, linkedFields) -> {
-                                if (linkedFields == null) {
-                                    linkedFields = new ArrayList<>();
-                                }
-                                linkedFields.add((DataField) field);
-                                return linkedFields;
-                            });
-                        }
-                    }
-                } else {
-                    dataFields.compute(field.getTag(), (s, variableFields) -> {
-                        if (variableFields == null) {
-                            variableFields = new ArrayList<>();
-                        }
-                        variableFields.add((DataField) field);
-                        return variableFields;
-                    });
-                }
+        for (DataField field : record.getDataFields()) {
+            String tag = field.getTag();
+            if (!plan.isDataFieldTag(tag)) {
+                continue;
+            }
+            fieldIds.put(field, ix++);
+            if (tag.equals("880")) {
+                unlinked880s.add(field);
+            } else {
+                addField(dataFields, presentDataTags, tag, field);
             }
         }
-        ix = -5000;
-        if (hasControls) {
-            controlFields = new HashMap<>();
-            List<ControlField> controlFields = record.getControlFields();
-            for (ControlField controlField : controlFields) {
-                controlField.setId(ix++);
-                this.controlFields.put(controlField.getTag(), controlField);
+    }
+
+    private void indexLinked880s() {
+        if (linked880sIndexed) {
+            return;
+        }
+        indexDataFields();
+        linked880sIndexed = true;
+        for (DataField field : unlinked880s) {
+            Subfield subfield = field.getSubfield('6');
+            if (subfield == null || subfield.getData().length() < 3) {
+                continue; // no tag to link it to, as RecordChanges treats it
+            }
+            String fldId = subfield.getData().substring(0, 3);
+            if (plan.isDataFieldTag(fldId)) {  // only store ones related to fields we're interested in
+                addField(linked880s, presentLinked880Tags, fldId, field);
             }
         }
     }
 
+    private void indexControlFields() {
+        if (controlFieldsIndexed) {
+            return;
+        }
+        controlFieldsIndexed = true;
+        long ix = -5000;
+        for (ControlField controlField : record.getControlFields()) {
+            fieldIds.put(controlField, ix++);
+            this.controlFields.put(controlField.getTag(), controlField);
+        }
+    }
+
+    private static void addField(Map<String, List<DataField>> fieldsByTag, List<String> presentTags, String tag, DataField field) {
+        List<DataField> fields = fieldsByTag.computeIfAbsent(tag, s -> new ArrayList<>());
+        if (fields.isEmpty()) {
+            presentTags.add(tag);
+        }
+        fields.add(field);
+    }
+
     public Record getRecord() {
         return record;
     }
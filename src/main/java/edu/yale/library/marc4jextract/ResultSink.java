@@ -0,0 +1,13 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.marc.Record;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives the values extracted from each record when extracting from a stream of records.
+ */
+public interface ResultSink {
+    void accept(Record record, Map<String, List<String>> values);
+}
@@ -0,0 +1,241 @@
+package edu.yale.library.marc4jextract;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file of extracted values keyed by record control number (001), so unchanged records don't need
+ * to be extracted again.
+ *
+ * Each stored result also records the record's date of latest transaction (005) and the hash of the
+ * specification that extracted it, and is only returned when both still match.  Results are appended to
+ * the file as lines of JSON and only their positions are kept in memory.  When a record is stored again the
+ * old line stays in the file until compact() is called.
+ *
+ * Stored results don't change when the library's extractor functions do, so start with an empty store
+ * after upgrading.
+ */
+public class ResultStore implements Closeable {
+
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Path path;
+    // the lock is only held to look up and update the index and to read or write the file, not while converting JSON
+    private RandomAccessFile file;
+    private long length;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // a store rarely holds results of more than a few specifications, so entries refer to their hash by index
+    private final List<String> specs = new ArrayList<>();
+    private final Map<String, Integer> specIndexes = new HashMap<>();
+
+    public ResultStore(Path path) throws IOException {
+        this.path = path;
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        load();
+    }
+
+    /**
+     * The stored values for the record, or null if there are none for this version of the record and specification.
+     */
+    public Map<String, List<String>> get(String id, String version, String specHash) {
+        byte[] line;
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            // a stale result is rejected without reading it
+            if (entry == null || !specHash.equals(specs.get(entry.spec)) || !version.equals(entry.version)) {
+                return null;
+            }
+            try {
+                line = new byte[entry.length];
+                file.seek(entry.offset);
+                file.readFully(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read stored result for " + id, e);
+            }
+        }
+        try {
+            return mapper.readValue(line, StoredResult.class).values;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read stored result for " + id, e);
+        }
+    }
+
+    public void put(String id, String version, String specHash, Map<String, List<String>> values) {
+        StoredResult result = new StoredResult();
+        result.id = id;
+        result.version = version;
+        result.spec = specHash;
+        result.values = values;
+        byte[] line;
+        try {
+            byte[] json = mapper.writeValueAsBytes(result);
+            line = Arrays.copyOf(json, json.length + 1);
+            line[json.length] = '\n';
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to store result for " + id, e);
+        }
+        synchronized (this) {
+            try {
+                file.seek(length);
+                file.write(line);
+                entries.put(id, new Entry(length, line.length - 1, version, specIndex(specHash)));
+                length += line.length;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to store result for " + id, e);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Rewrites the file with only the latest result for each record.  If that fails the store keeps using the old file.
+     */
+    public synchronized void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        Map<String, Entry> compactedEntries = new HashMap<>();
+        long compactedLength;
+        try (RandomAccessFile out = new RandomAccessFile(compacted.toFile(), "rw")) {
+            out.setLength(0);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                byte[] line = new byte[entry.length + 1];
+                file.seek(entry.offset);
+                file.readFully(line);
+                compactedEntries.put(e.getKey(), new Entry(out.getFilePointer(), entry.length, entry.version, entry.spec));
+                out.write(line);
+            }
+            compactedLength = out.getFilePointer();
+        }
+        file.close();
+        try {
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(compacted);
+            throw e;
+        } finally {
+            // the old file when the move failed, so the index still matches it
+            file = new RandomAccessFile(path.toFile(), "rw");
+        }
+        entries.clear();
+        entries.putAll(compactedEntries);
+        length = compactedLength;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    // Indexes the lines already in the file.  An incomplete last line, left by a crash, is cut off.
+    private void load() throws IOException {
+        file.seek(0);
+        InputStream in = new BufferedInputStream(Channels.newInputStream(file.getChannel()), 1 << 16);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long offset = 0;
+        long lineStart = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            offset++;
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            indexLine(line.toByteArray(), lineStart);
+            line.reset();
+            lineStart = offset;
+        }
+        if (lineStart < file.length()) {
+            file.setLength(lineStart);
+        }
+        length = lineStart;
+    }
+
+    // The id, version and spec are written first, so only the start of the line needs to be parsed.
+    private void indexLine(byte[] line, long offset) {
+        try (JsonParser parser = mapper.getFactory().createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+            String id = null;
+            String version = null;
+            String spec = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                if (name.equals("values")) {
+                    break;
+                }
+                parser.nextToken();
+                if (name.equals("id")) {
+                    id = parser.getValueAsString();
+                } else if (name.equals("version")) {
+                    version = parser.getValueAsString();
+                } else if (name.equals("spec")) {
+                    spec = parser.getValueAsString();
+                }
+                parser.skipChildren();
+            }
+            if (id != null) {
+                entries.put(id, new Entry(offset, line.length, version, specIndex(spec)));
+            }
+        } catch (IOException e) {
+            // not a stored result
+        }
+    }
+
+    private int specIndex(String specHash) {
+        Integer index = specIndexes.get(specHash);
+        if (index == null) {
+            index = specs.size();
+            specs.add(specHash);
+            specIndexes.put(specHash, index);
+        }
+        return index;
+    }
+
+    private static class Entry {
+        private final long offset;
+        private final int length;
+        private final String version;
+        // an index into specs
+        private final int spec;
+
+        Entry(long offset, int length, String version, int spec) {
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+            this.spec = spec;
+        }
+    }
+
+    @JsonPropertyOrder({"id", "version", "spec", "values"})
+    private static class StoredResult {
+        public String id;
+        public String version;
+        public String spec;
+        public Map<String, List<String>> values;
+    }
+}
@@ -16,7 +16,7 @@ public class SortAuthorExtractorFunction implements ExtractorFunction {
         List<String> primaryFields = Arrays.asList("100","110","111");
         List<String> primaryFieldValues = new ArrayList<>();
         for ( String fieldTag : primaryFields ) {
-            List<DataField> fields = recordExtractor.dataFields.get(fieldTag);
+            List<DataField> fields = recordExtractor.getDataFields(fieldTag);
             if ( fields != null ) {
                 for (DataField field : fields) {
                     primaryFieldValues.addAll(
@@ -36,7 +36,7 @@ public class SortAuthorExtractorFunction implements ExtractorFunction {
         }
         List<String> titleFields = Arrays.asList("240","245");
         for ( String fieldTag : titleFields ) {
-            List<DataField> fields = recordExtractor.dataFields.get(fieldTag);
+            List<DataField> fields = recordExtractor.getDataFields(fieldTag);
             if ( fields != null ) {
                 for (DataField field : fields) {
                     String titleString = field.getSubfields().stream().map(sf -> sf.getData()).filter(s -> !StringUtils.isEmpty(s)).collect(Collectors.joining(" "));
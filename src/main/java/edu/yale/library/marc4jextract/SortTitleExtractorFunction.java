@@ -11,7 +11,7 @@ public class SortTitleExtractorFunction implements ExtractorFunction {
 
     @Override
     public void extractValues(RecordExtractor recordExtractor, List<String> values) {
-        List<DataField> fld245 = recordExtractor.dataFields.get("245");
+        List<DataField> fld245 = recordExtractor.getDataFields("245");
         String firstValue = null;
         String nonFiling = null;
         for ( DataField dataField : fld245 ) {
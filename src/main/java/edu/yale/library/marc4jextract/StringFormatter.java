@@ -1,21 +1,103 @@
 package edu.yale.library.marc4jextract;
 
-import java.util.regex.Pattern;
-
 public class StringFormatter {
 
-    private static Pattern trailingPunc = Pattern.compile(" *[,\\/;:] *\\Z");
-    private static Pattern trailingPeriod = Pattern.compile("( *[\\p{IsAlphabetic},\\w]{3,})\\.\\Z");
-    private static Pattern trailingSquareBracket = Pattern.compile("\\A\\[?([^\\[\\]]+)\\]?\\Z");
-
     // Trims punctuation, but leaves trailing period preceded by 2 or fewer letters.
+    //
+    // This is a hand written version of applying these patterns in order, followed by trim():
+    //   trailing punctuation:     " *[,\/;:] *\Z"                        replaced with ""
+    //   trailing period:          "( *[\p{IsAlphabetic},\w]{3,})\.\Z"     replaced with "$1"
+    //   trailing square bracket:  "\A\[?([^\[\]]+)\]?\Z"                 replaced with "$1"
+    // \Z also matches before a line terminator at the very end, which is kept.
+    // The string is returned as is when nothing is trimmed.
     public static String trimPunctuation(String s) {
         if (s == null) return null;
-        s = trailingPunc.matcher(s).replaceAll("");
-        s = trailingPeriod.matcher(s).replaceAll("$1");
-        s = trailingSquareBracket.matcher(s).replaceAll("$1");
-        s = s.trim();
-        if (s.equals(".")) s = ""; // remove trailing period, if that's all there is
-        return s;
+        int start = 0;
+        int end = s.length();
+
+        // trailing punctuation
+        int lineEnd = lineEnd(s, end);
+        int i = lineEnd;
+        while (i > 0 && s.charAt(i - 1) == ' ') i--;
+        if (i > 0 && isTrailingPunctuation(s.charAt(i - 1))) {
+            i--;
+            while (i > 0 && s.charAt(i - 1) == ' ') i--;
+            if (lineEnd == end) {
+                end = i;
+            } else {
+                s = s.substring(0, i) + s.substring(lineEnd, end);
+                end = s.length();
+            }
+        }
+
+        // trailing period preceded by three or more letters
+        lineEnd = lineEnd(s, end);
+        if (lineEnd > 0 && s.charAt(lineEnd - 1) == '.' && endsWithThreeWordCharacters(s, lineEnd - 1)) {
+            if (lineEnd == end) {
+                end--;
+            } else {
+                s = s.substring(0, lineEnd - 1) + s.substring(lineEnd, end);
+                end = s.length();
+            }
+        }
+
+        // square brackets around the whole value
+        int open = (end > 0 && s.charAt(0) == '[') ? 1 : 0;
+        int close = open;
+        while (close < end && s.charAt(close) != '[' && s.charAt(close) != ']') close++;
+        if (close > open) {
+            if (close == end) {
+                start = open;
+            } else if (s.charAt(close) == ']') {
+                int afterClose = close + 1;
+                if (afterClose == end) {
+                    start = open;
+                    end = close;
+                } else if (lineEnd(s, end) == afterClose) {
+                    s = s.substring(open, close) + s.substring(afterClose, end);
+                    end = s.length();
+                }
+            }
+        }
+
+        // trim
+        while (start < end && s.charAt(start) <= ' ') start++;
+        while (end > start && s.charAt(end - 1) <= ' ') end--;
+
+        if (end - start == 1 && s.charAt(start) == '.') return ""; // remove trailing period, if that's all there is
+        return (start == 0 && end == s.length()) ? s : s.substring(start, end);
+    }
+
+    private static boolean isTrailingPunctuation(char c) {
+        return c == ',' || c == '/' || c == ';' || c == ':';
+    }
+
+    // The position \Z matches at in s[0, end): before a final line terminator, otherwise the end.
+    private static int lineEnd(String s, int end) {
+        if (end >= 2 && s.charAt(end - 2) == '\r' && s.charAt(end - 1) == '\n') {
+            return end - 2;
+        }
+        if (end >= 1) {
+            char c = s.charAt(end - 1);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return end - 1;
+            }
+        }
+        return end;
+    }
+
+    // True when the three code points before end are letters, digits, underscores or commas.
+    private static boolean endsWithThreeWordCharacters(String s, int end) {
+        int i = end;
+        for (int n = 0; n < 3; n++) {
+            if (i <= 0) return false;
+            int codePoint = Character.codePointBefore(s, i);
+            if (!(Character.isAlphabetic(codePoint) || codePoint == ',' || codePoint == '_'
+                    || (codePoint >= '0' && codePoint <= '9'))) {
+                return false;
+            }
+            i -= Character.charCount(codePoint);
+        }
+        return true;
     }
 }
@@ -6,12 +6,19 @@ import org.marc4j.marc.Subfield;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class SubjectHeadingExtractorFunction implements ExtractorFunction {
 
-    private final Map<String, String> additionalSubfieldsMap = new HashMap<>();
-    private final List<String> defaultSubfieldLists = Arrays.asList("v", "x", "y", "z");
-    {
+    // every 6XX field is read from the record
+    private static final List<String> SUBJECT_TAGS = Collections.unmodifiableList(
+            IntStream.rangeClosed(600, 699).mapToObj(String::valueOf).collect(Collectors.toList()));
+    // subfields that are each a component of the heading
+    private static final String DEFAULT_SUBFIELDS = "vxyz";
+    // the plan for each tag from 600 to 699
+    private static final TagPlan[] tagPlans = new TagPlan[100];
+    static {
+        Map<String, String> additionalSubfieldsMap = new HashMap<>();
         additionalSubfieldsMap.put("600", "abcdgjq");
         additionalSubfieldsMap.put("610", "abcdfgt");
         additionalSubfieldsMap.put("611", "acdegnqu");
@@ -24,71 +31,110 @@ public class SubjectHeadingExtractorFunction implements ExtractorFunction {
         additionalSubfieldsMap.put("693", "abcdg");
         additionalSubfieldsMap.put("694", "acdgnqu");
         additionalSubfieldsMap.put("695", "adfhklmnoprst");
+        for (int i = 0; i < tagPlans.length; i++) {
+            tagPlans[i] = new TagPlan(additionalSubfieldsMap.getOrDefault(String.valueOf(600 + i), ""));
+        }
     }
 
     @Override
     public void extractValues(RecordExtractor recordExtractor, List<String> subjectHeadings) {
-        // look through the 600 fields and create subject headings
-            for (DataField field : recordExtractor.getRecord().getDataFields()) {
-                if (field.getTag().matches("6\\d\\d")) {
-                    List<String> subfieldCodesList = new ArrayList<>(defaultSubfieldLists);
-                    String additional = additionalSubfieldsMap.get(field.getTag());
-                    if (additional != null) {
-                        subfieldCodesList.add(0, additional);
-                    }
+        // look through the 600 fields, in record order, and create subject headings
+        List<DataField> fields = new ArrayList<>();
+        int tagCount = 0;
+        for (String tag : recordExtractor.getPresentDataTags()) {
+            if (tagPlan(tag) != null) {
+                fields.addAll(recordExtractor.getDataFields(tag));
+                tagCount++;
+            }
+        }
+        if (tagCount > 1) {
+            fields.sort(Comparator.comparingLong(recordExtractor::getFieldId));
+        }
 
-                    List<ValuePosition> subjectComponents = new ArrayList<>();
-                    // look for each subfields group, and combine values.
-                    for (String subfieldCodes : subfieldCodesList) {
-                        if (subfieldCodes.length() == 1) {
-                            int pos = 0;
-                            for (Subfield subfield : field.getSubfields()) {
-                                if (subfieldCodes.indexOf(subfield.getCode()) >= 0) {
-                                    String value = subfield.getData();
-                                    value = StringFormatter.trimPunctuation(value);
-                                    if (!StringUtils.isEmpty(value)) {
-                                        subjectComponents.add(new ValuePosition(value, pos));
-                                    }
-                                }
-                                pos++;
-                            }
-                        } else {
-                            // concat into one field
-                            List<String> subfieldValues = new ArrayList<>();
-                            int pos = 0;
-                            int ix = 0;
-                            for (Subfield subfield : field.getSubfields()) {
-                                if (subfieldCodes.indexOf(subfield.getCode()) >= 0) {
-                                    if (pos == 0) pos = ix;
-                                    subfieldValues.add(subfield.getData());
-                                }
-                                ix++;
-                            }
-                            String value = subfieldValues.stream().collect(Collectors.joining(" "));
-                            value = StringFormatter.trimPunctuation(value);
-                            if (!StringUtils.isEmpty(value)) {
-                                subjectComponents.add(new ValuePosition(value, pos));
-                            }
+        Set<String> seen = new HashSet<>(subjectHeadings);
+        List<String> components = new ArrayList<>();
+        int[] positions = new int[8];
+        StringBuilder joined = new StringBuilder();
+        StringBuilder label = new StringBuilder();
+        for (DataField field : fields) {
+            TagPlan plan = tagPlan(field.getTag());
+            components.clear();
+            joined.setLength(0);
+            boolean anyJoined = false;
+            int joinedPos = 0;
+            int ix = 0;
+            for (Subfield subfield : field.getSubfields()) {
+                char code = subfield.getCode();
+                if (plan.isJoined(code)) {
+                    // the position of the first joined subfield, unless that is the first subfield,
+                    // in which case it is the second one, as it always has been
+                    if (joinedPos == 0) joinedPos = ix;
+                    if (anyJoined) joined.append(' ');
+                    joined.append(subfield.getData());
+                    anyJoined = true;
+                }
+                if (plan.isComponent(code)) {
+                    String value = StringFormatter.trimPunctuation(subfield.getData());
+                    if (!StringUtils.isEmpty(value)) {
+                        if (components.size() == positions.length) {
+                            positions = Arrays.copyOf(positions, positions.length * 2);
                         }
+                        positions[components.size()] = ix;
+                        components.add(value);
                     }
+                }
+                ix++;
+            }
+            String joinedValue = anyJoined ? StringFormatter.trimPunctuation(joined.toString()) : null;
+            if (StringUtils.isEmpty(joinedValue)) {
+                joinedValue = null;
+            }
+            if (components.isEmpty() && joinedValue == null) {
+                continue;
+            }
 
-                    if (subjectComponents.size() > 0) {
-                        // sort by subfield position in the field
-                        subjectComponents.sort(Comparator.comparingInt(o -> o.position));
-
-                        String label = subjectComponents.stream().map(c -> c.value).collect(Collectors.joining(" > "));
-                        if (!subjectHeadings.contains(label)) {
-                            subjectHeadings.add(label);
-                        }
-                    }
+            // the components in subfield order, the joined value going before any at the same position
+            label.setLength(0);
+            for (int i = 0; i < components.size(); i++) {
+                if (joinedValue != null && positions[i] >= joinedPos) {
+                    appendComponent(label, joinedValue);
+                    joinedValue = null;
                 }
+                appendComponent(label, components.get(i));
+            }
+            if (joinedValue != null) {
+                appendComponent(label, joinedValue);
             }
+            String heading = label.toString();
+            if (seen.add(heading)) {
+                subjectHeadings.add(heading);
+            }
+        }
+    }
 
+    private static void appendComponent(StringBuilder label, String value) {
+        if (label.length() > 0) {
+            label.append(" > ");
+        }
+        label.append(value);
+    }
+
+    // The plan for a 6XX tag, or null for any other tag.
+    private static TagPlan tagPlan(String tag) {
+        if (tag.length() != 3 || tag.charAt(0) != '6') {
+            return null;
+        }
+        int tens = tag.charAt(1) - '0';
+        int ones = tag.charAt(2) - '0';
+        if (tens < 0 || tens > 9 || ones < 0 || ones > 9) {
+            return null;
+        }
+        return tagPlans[tens * 10 + ones];
     }
 
     @Override
     public List<String> getDependentFields() {
-        return Collections.EMPTY_LIST;
+        return SUBJECT_TAGS;
     }
 
     @Override
@@ -96,13 +142,26 @@ public class SubjectHeadingExtractorFunction implements ExtractorFunction {
         return false;
     }
 
+    // The subfields joined into one component of the heading, and the subfields that are components on their own.
+    private static class TagPlan {
+        private final boolean[] joined = new boolean[128];
+        private final boolean[] component = new boolean[128];
+
+        TagPlan(String joinedSubfields) {
+            for (char code : joinedSubfields.toCharArray()) {
+                joined[code] = true;
+            }
+            for (char code : DEFAULT_SUBFIELDS.toCharArray()) {
+                component[code] = true;
+            }
+        }
+
+        boolean isJoined(char code) {
+            return code < 128 && joined[code];
+        }
 
-    public class ValuePosition {
-        private final String value;
-        private final int position;
-        public ValuePosition(String value, int position) {
-            this.value = value;
-            this.position = position;
+        boolean isComponent(char code) {
+            return code < 128 && component[code];
         }
     }
 }
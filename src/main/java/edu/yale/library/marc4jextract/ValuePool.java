@@ -0,0 +1,52 @@
+package edu.yale.library.marc4jextract;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical copies of extracted values, so values that repeat across records, like language names or
+ * publishers, share one String.
+ *
+ * The pool holds at most maxSize values.  When it fills up it is emptied and starts again, so a long run
+ * keeps deduplicating the values that are common at the time.  It is safe to share between threads.
+ */
+public class ValuePool {
+
+    // values longer than this rarely repeat exactly
+    private static final int MAX_VALUE_LENGTH = 256;
+
+    private final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    public ValuePool(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the pooled value equal to value, adding value to the pool if there is none.
+     */
+    public String canonicalize(String value) {
+        if (value == null || value.length() > MAX_VALUE_LENGTH) {
+            return value;
+        }
+        String pooled = values.get(value);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (values.size() >= maxSize) {
+            values.clear();
+        }
+        pooled = values.putIfAbsent(value, value);
+        return pooled != null ? pooled : value;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public void clear() {
+        values.clear();
+    }
+}
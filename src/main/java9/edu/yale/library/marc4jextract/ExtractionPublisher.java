@@ -0,0 +1,253 @@
+package edu.yale.library.marc4jextract;
+
+import org.marc4j.MarcReader;
+import org.marc4j.marc.Record;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the extracted values of every record in a MarcReader to a single subscriber, reading and extracting
+ * only as many records as the subscriber has requested, plus up to prefetch records ahead.
+ *
+ * Records are read, extracted and delivered on the executor one task at a time, so the reader doesn't need to be
+ * thread safe.  Reading blocks on the reader's input, so without an executor the subscription gets a thread of its
+ * own, stopped when it completes, fails or is cancelled, rather than tying up a shared pool.  At most prefetch
+ * extracted records are held waiting for demand, so a slow subscriber holds back the reader rather than filling
+ * memory.  A subscriber that throws from onNext cancels its subscription.  Only built on Java 9 and later.
+ */
+public class ExtractionPublisher implements Flow.Publisher<ExtractionPublisher.Result> {
+
+    /**
+     * A record with its extracted values.
+     */
+    public static class Result {
+        private final Record record;
+        private final Map<String, List<String>> values;
+
+        Result(Record record, Map<String, List<String>> values) {
+            this.record = record;
+            this.values = values;
+        }
+
+        public Record getRecord() {
+            return record;
+        }
+
+        public Map<String, List<String>> getValues() {
+            return values;
+        }
+    }
+
+    private final JsonExtractionSpec spec;
+    private final MarcReader reader;
+    private final int prefetch;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * A publisher whose subscription reads and extracts on a thread of its own.
+     */
+    public ExtractionPublisher(JsonExtractionSpec spec, MarcReader reader, int prefetch) {
+        this(spec, reader, prefetch, null);
+    }
+
+    public ExtractionPublisher(JsonExtractionSpec spec, MarcReader reader, int prefetch, Executor executor) {
+        if (prefetch < 0) {
+            throw new IllegalArgumentException("prefetch must not be negative");
+        }
+        this.spec = spec;
+        this.reader = reader;
+        this.prefetch = prefetch;
+        this.executor = executor;
+    }
+
+    /**
+     * The reader can only be read once, so only the first subscriber gets the results; any other gets an error.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("ExtractionPublisher only supports one subscriber"));
+            return;
+        }
+        ExtractionSubscription subscription = new ExtractionSubscription(subscriber, executor != null ? executor : newOwnExecutor());
+        subscriber.onSubscribe(subscription);
+        subscription.signal();
+    }
+
+    private class ExtractionSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Result> subscriber;
+        private final Executor executor;
+        private final AtomicLong requested = new AtomicLong();
+        // counts signals, so only one drain runs at a time and none are missed
+        private final AtomicInteger signals = new AtomicInteger();
+        // only used by the drain
+        private final Queue<Result> extracted = new ArrayDeque<>();
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest;
+        private boolean done = false;
+        private Throwable failure;
+        private boolean endOfRecords = false;
+
+        ExtractionSubscription(Flow.Subscriber<? super Result> subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("request must be positive, was " + n);
+            } else {
+                requested.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            signal();
+        }
+
+        void signal() {
+            if (signals.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the subscription's own thread has stopped, after it finished
+                }
+            }
+        }
+
+        // Delivers as many results as requested, then extracts up to prefetch more.
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    drain();
+                }
+                missed = signals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (cancelled) {
+                finish();
+                return;
+            }
+            if (invalidRequest != null) {
+                finish();
+                subscriber.onError(invalidRequest);
+                return;
+            }
+            long delivered = 0;
+            long demand = requested.get();
+            while (delivered < demand && !cancelled) {
+                if (extracted.isEmpty() && !extractNext()) {
+                    break;
+                }
+                try {
+                    subscriber.onNext(extracted.poll());
+                } catch (RuntimeException e) {
+                    // the subscriber failed, so it's treated as having cancelled
+                    cancelled = true;
+                    finish();
+                    return;
+                }
+                delivered++;
+            }
+            if (delivered > 0 && demand != Long.MAX_VALUE) {
+                requested.addAndGet(-delivered);
+            }
+            while (extracted.size() < prefetch && !cancelled && extractNext()) {
+                // extracting ahead of demand
+            }
+            if (extracted.isEmpty() && !cancelled && (endOfRecords || failure != null)) {
+                finish();
+                if (failure != null) {
+                    subscriber.onError(failure);
+                } else {
+                    subscriber.onComplete();
+                }
+            }
+        }
+
+        // Reads and extracts the next record, or returns false at the end of the records or after a failure.
+        private boolean extractNext() {
+            if (endOfRecords || failure != null) {
+                return false;
+            }
+            try {
+                if (!reader.hasNext()) {
+                    endOfRecords = true;
+                    return false;
+                }
+                Record record = reader.next();
+                extracted.add(new Result(record, spec.extractValues(record)));
+                return true;
+            } catch (RuntimeException e) {
+                failure = e;
+                return false;
+            }
+        }
+
+        private void finish() {
+            done = true;
+            extracted.clear();
+            if (executor instanceof OwnExecutor) {
+                ((OwnExecutor) executor).shutdown();
+            }
+        }
+    }
+
+    private static Executor newOwnExecutor() {
+        return new OwnExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "marc4jextract-publisher");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    // A subscription's own thread, so a caller's executor is never shut down.
+    private static class OwnExecutor implements Executor {
+        private final ExecutorService executorService;
+
+        OwnExecutor(ExecutorService executorService) {
+            this.executorService = executorService;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            executorService.execute(command);
+        }
+
+        void shutdown() {
+            executorService.shutdown();
+        }
+    }
+}
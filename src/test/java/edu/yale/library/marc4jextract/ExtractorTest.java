@@ -7,7 +7,10 @@ import org.marc4j.MarcStreamReader;
 import org.marc4j.marc.*;
 import org.marc4j.marc.Record;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 import static org.junit.Assert.assertNull;
 
@@ -65,6 +68,52 @@ public class ExtractorTest {
         assert results.get(0).equals("English");
     }
 
+    @Test
+    public void languageMapSplitsCodes() {
+        List<String> values = new ArrayList<>(Arrays.asList("engfre,jpn", "eng", "xxxzz", "|||", "ENG"));
+        new LanguageMapFunction().extractValues(null, values);
+        assert values.equals(Arrays.asList("English", "French", "Japanese", "xxx", "No attempt to code", "ENG")) : values;
+    }
+
+    @Test
+    public void extractReusesCompiledSpec() throws InvalidSpecException {
+        Record record = loadTestRecord2();
+        List<String> first = Extractor.extract(record, "245ab:710ab", ScriptInclusion.BOTH, true, ".*?(\\w+).*", " ");
+        List<String> second = Extractor.extract(record, "245ab:710ab", ScriptInclusion.BOTH, true, ".*?(\\w+).*", " ");
+        assert !first.isEmpty();
+        assert first.equals(second);
+        // the cache is keyed by every parameter
+        assert !Extractor.extract(record, "245ab:710ab", ScriptInclusion.BOTH, true, null, " ").equals(first);
+        // a spec that fails to compile fails every time
+        for (int i = 0; i < 2; i++) {
+            try {
+                Extractor.extract(record, "245a", ScriptInclusion.BOTH, true, "(", " ");
+                assert false;
+            } catch (InvalidSpecException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void tagPatternMatchesExpandedTags() throws InvalidSpecException {
+        StringBuilder expanded = new StringBuilder();
+        for (int tag = 600; tag < 800; tag++) {
+            expanded.append(expanded.length() > 0 ? ":" : "").append(tag).append("ab");
+        }
+        for (Record record : Arrays.asList(loadTestRecord(), loadTestRecord2(), loadTestRecord3(), loadTestRecord4())) {
+            for (ScriptInclusion scriptInclusion : ScriptInclusion.values()) {
+                List<String> patternValues = Extractor.extract(record, "6XXab:7XXab", scriptInclusion, true, null, " ");
+                List<String> expandedValues = Extractor.extract(record, expanded.toString(), scriptInclusion, true, null, " ");
+                assert Objects.equals(patternValues, expandedValues);
+            }
+        }
+        assert Extractor.extract(loadTestRecord2(), "7XXab", ScriptInclusion.BOTH, true, null, " ") != null;
+        assert Extractor.tagMatches("65X", "650");
+        assert !Extractor.tagMatches("65X", "600");
+        assert !Extractor.tagMatches("6XX", "6ab");
+    }
+
     @Test
     public void sortAuthorExtractor() throws InvalidSpecException {
         Record record = loadTestRecordTitleThe();
@@ -381,6 +430,44 @@ public class ExtractorTest {
         assert results.get(0).equals("1950/9999");
     }
 
+    @Test
+    public void subjectHeadingExtractor() throws InvalidSpecException {
+        Record record = loadTestRecordTitleThe();
+        MarcFactory marcFactory = MarcFactory.newInstance();
+        DataField topic = marcFactory.newDataField("650", ' ', '0', "a", "Cats", "x", "Behavior.", "z", "Japan.");
+        record.addVariableField(topic);
+        record.addVariableField(marcFactory.newDataField("600", '1', '0', "a", "Test, Author,", "d", "1900-1980."));
+        record.addVariableField(marcFactory.newDataField("650", ' ', '0', "a", "Cats", "x", "Behavior.", "z", "Japan."));
+        record.addVariableField(marcFactory.newDataField("655", ' ', '7', "v", "Periodicals."));
+        List<String> results = Extractor.extract(record, "subjectHeadingExtractor");
+        assert results.equals(Arrays.asList("Cats > Behavior > Japan", "Test, Author, 1900-1980", "Periodicals"));
+    }
+
+    @Test
+    public void dateRangeTest() {
+        DateExtractorFunction.DateRange range = DateExtractorFunction.getDateRange(
+                loadTestDateRecord("191223t    miu     o      00 0 eng d", "199-", "Sept 199?"));
+        assert range.getStart() == 1990;
+        assert range.getEnd() == 1999;
+        assert range.toString().equals("1990/1999");
+        range = DateExtractorFunction.getDateRange(
+                loadTestDateRecord("191223c19uu    miu     o      00 0 eng d", "", ""));
+        assert range.getStart() == 1900;
+        assert range.getEnd() == 9999;
+        assert range.toString().equals("1900/9999");
+        // a continuing resource always shows its end, even when it starts in 9999
+        range = DateExtractorFunction.getDateRange(
+                loadTestDateRecord("191223c9999    miu     o      00 0 eng d", "", ""));
+        assert range.getStart() == 9999 && range.getEnd() == 9999;
+        assert range.toString().equals("9999/9999");
+        range = DateExtractorFunction.getDateRange(
+                loadTestDateRecord("191223s1956    miu     o      00 0 eng d", "", ""));
+        assert range.getStart() == 1956 && range.getEnd() == 1956;
+        assert range.toString().equals("1956");
+        assertNull(DateExtractorFunction.getDateRange(
+                loadTestDateRecord("191223n        miu     o      00 0 eng d", "", "n.d.")));
+    }
+
     private Record loadTestRecord() {
         // mocking marc records is probably not worth the trouble.
         MarcReader marcReader = new MarcStreamReader( this.getClass().getResourceAsStream("/558505.marc"));
@@ -1,13 +1,40 @@
 package edu.yale.library.marc4jextract;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcException;
+import org.marc4j.MarcJsonReader;
+import org.marc4j.MarcJsonWriter;
 import org.marc4j.MarcStreamReader;
+import org.marc4j.MarcXmlReader;
+import org.marc4j.MarcXmlWriter;
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
 import org.marc4j.marc.Record;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class JsonExtractionSpecTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testExtractValues() throws InvalidSpecException {
         JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
@@ -97,6 +124,360 @@ public class JsonExtractionSpecTest {
         assert values.get("Test2").get(1).equals("  2001050014");
     }
 
+    @Test
+    public void testExtractAll() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec.json"));
+        List<Record> records = new ArrayList<>();
+        List<Map<String, List<String>>> results = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords()), (record, values) -> {
+            records.add(record);
+            results.add(values);
+        });
+        assert records.size() == 4;
+        assert results.get(0).get("Creator").get(0).equals("Herman, Edward S.");
+        // each result should match extracting the record on its own
+        for (int i = 0; i < records.size(); i++) {
+            assert results.get(i).equals(jsonExtractionSpec.extractValues(records.get(i)));
+        }
+    }
+
+    @Test
+    public void testExtractAllParallel() throws InvalidSpecException, InterruptedException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec.json"));
+        List<Map<String, List<String>>> expected = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords()), (record, values) -> expected.add(values));
+        }
+
+        List<Map<String, List<String>>> ordered = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords(25)), (record, values) -> ordered.add(values), 4, true);
+        assert ordered.equals(expected);
+
+        List<Map<String, List<String>>> unordered = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords(25)), (record, values) -> unordered.add(values), 4, false);
+        assert unordered.size() == expected.size();
+        assert unordered.containsAll(expected) && expected.containsAll(unordered);
+    }
+
+    @Test
+    public void testExtractAllRaw() throws InvalidSpecException, IOException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        for (String file : ALL_RECORD_FILES) {
+            List<Map<String, List<String>>> expected = new ArrayList<>();
+            jsonExtractionSpec.extractAll(new MarcStreamReader(getClass().getResourceAsStream(file)), (record, values) -> expected.add(values));
+            List<Map<String, List<String>>> raw = new ArrayList<>();
+            jsonExtractionSpec.extractAll(getClass().getResourceAsStream(file), (record, values) -> raw.add(values));
+            assert !expected.isEmpty();
+            assert raw.equals(expected) : file;
+        }
+    }
+
+    @Test
+    public void testExtractAllXml() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        for (String file : ALL_RECORD_FILES) {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            MarcXmlWriter writer = new MarcXmlWriter(xml, true);
+            MarcStreamReader reader = new MarcStreamReader(getClass().getResourceAsStream(file));
+            while (reader.hasNext()) {
+                writer.write(reader.next());
+            }
+            writer.close();
+
+            List<Map<String, List<String>>> expected = new ArrayList<>();
+            jsonExtractionSpec.extractAll(new MarcXmlReader(new ByteArrayInputStream(xml.toByteArray())), (record, values) -> expected.add(values));
+            List<Map<String, List<String>>> streamed = new ArrayList<>();
+            jsonExtractionSpec.extractAllXml(new ByteArrayInputStream(xml.toByteArray()), (record, values) -> streamed.add(values));
+            assert !expected.isEmpty();
+            assert streamed.equals(expected) : file;
+        }
+    }
+
+    @Test
+    public void testExtractAllJson() throws InvalidSpecException, IOException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        for (String file : ALL_RECORD_FILES) {
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            MarcJsonWriter writer = new MarcJsonWriter(json, MarcJsonWriter.MARC_IN_JSON);
+            MarcStreamReader reader = new MarcStreamReader(getClass().getResourceAsStream(file));
+            while (reader.hasNext()) {
+                writer.write(reader.next());
+            }
+            writer.close();
+
+            List<Map<String, List<String>>> expected = new ArrayList<>();
+            jsonExtractionSpec.extractAll(new MarcJsonReader(new ByteArrayInputStream(json.toByteArray())), (record, values) -> expected.add(values));
+            List<Map<String, List<String>>> streamed = new ArrayList<>();
+            jsonExtractionSpec.extractAllJson(new ByteArrayInputStream(json.toByteArray()), (record, values) -> streamed.add(values));
+            assert !expected.isEmpty();
+            assert streamed.equals(expected) : file;
+
+            // the same records in an array
+            String array = "[" + new String(json.toByteArray(), StandardCharsets.UTF_8).trim().replace("}\n{", "},{") + "]";
+            streamed.clear();
+            jsonExtractionSpec.extractAllJson(new ByteArrayInputStream(array.getBytes(StandardCharsets.UTF_8)), (record, values) -> streamed.add(values));
+            assert streamed.equals(expected) : file;
+        }
+
+        // unknown keys, codes and tags are skipped, fraction slashes read as slashes, and indicators may come last
+        String record = "{\"leader\":\"00000nam a2200000 a 4500\",\"extra\":{\"a\":[1]},\"fields\":["
+                + "{\"001\":\"123\"},{\"008\":\"871002s1986    ja a         f00000 jpn  \"},{\"xyz\":{\"subfields\":[]}},"
+                + "{\"100\":{\"subfields\":[{\"a\":\"Author,\"},{\"A\":\"dropped\"},{\"d\":\"1900\u20441990.\"}],\"ind2\":\"\",\"ind1\":\"1\"}},"
+                + "{\"245\":{\"ind1\":\"1\",\"ind2\":\"4\",\"subfields\":[{\"a\":\"The title /\"},{\"c\":\"by someone.\"}]}}]}";
+        Map<String, List<String>> values = jsonExtractionSpec.extractValuesJson(record);
+        assert values.equals(jsonExtractionSpec.extractValues(new MarcJsonReader(new ByteArrayInputStream(record.getBytes(StandardCharsets.UTF_8))).next()));
+        assert values.get("Creator").get(0).contains("1900/1990");
+    }
+
+    @Test
+    public void testExtractValuesRaw() throws InvalidSpecException, IOException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = getClass().getResourceAsStream("/manufacturing_consent.marc")) {
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+        }
+        byte[] bytes = out.toByteArray();
+        Map<String, List<String>> values = jsonExtractionSpec.extractValues(bytes);
+        assert values.get("Creator").get(0).equals("Herman, Edward S.");
+        assert values.equals(jsonExtractionSpec.extractValues(new MarcStreamReader(new ByteArrayInputStream(bytes)).next()));
+    }
+
+    @Test
+    public void testExtractAllMappedFile() throws InvalidSpecException, IOException, InterruptedException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        List<Map<String, List<String>>> expected = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords(25)), (record, values) -> expected.add(values));
+
+        File file = temporaryFolder.newFile("records.mrc");
+        Files.copy(testRecords(25), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        List<Map<String, List<String>>> ordered = new ArrayList<>();
+        jsonExtractionSpec.extractAll(file.toPath(), (record, values) -> ordered.add(values), 4, true);
+        assert ordered.equals(expected);
+
+        List<Map<String, List<String>>> unordered = new ArrayList<>();
+        jsonExtractionSpec.extractAll(file.toPath(), (record, values) -> unordered.add(values), 4, false);
+        assert unordered.size() == expected.size();
+        assert unordered.containsAll(expected) && expected.containsAll(unordered);
+    }
+
+    @Test
+    public void testExtractAllPipelined() throws InvalidSpecException, IOException, InterruptedException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        List<Map<String, List<String>>> expected = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords(300)), (record, values) -> expected.add(values));
+
+        List<Map<String, List<String>>> ordered = new ArrayList<>();
+        jsonExtractionSpec.extractAllPipelined(new MarcStreamReader(testRecords(300)), (record, values) -> ordered.add(values), 3, true);
+        assert ordered.equals(expected);
+
+        List<Map<String, List<String>>> raw = new ArrayList<>();
+        jsonExtractionSpec.extractAllPipelined(testRecords(300), (record, values) -> raw.add(values), 3, true);
+        assert raw.equals(expected);
+
+        List<Map<String, List<String>>> unordered = new ArrayList<>();
+        jsonExtractionSpec.extractAllPipelined(testRecords(300), (record, values) -> unordered.add(values), 3, false);
+        assert unordered.size() == expected.size();
+        assert unordered.containsAll(expected) && expected.containsAll(unordered);
+
+        // a record cut short fails the whole run on the calling thread
+        byte[] truncated = new byte[1000];
+        int length = testRecords(1).read(truncated);
+        try {
+            jsonExtractionSpec.extractAllPipelined(new ByteArrayInputStream(truncated, 0, length), (record, values) -> { }, 2, true);
+            assert false;
+        } catch (MarcException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExtractorMetrics() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        ExtractorMetrics metrics = new ExtractorMetrics();
+        jsonExtractionSpec.setExtractionListener(metrics);
+        List<Map<String, List<String>>> results = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords()), (record, values) -> results.add(values));
+
+        Map<String, ExtractorMetrics.Stats> snapshot = metrics.snapshot();
+        assert snapshot.size() == 17;
+        for (ExtractorMetrics.Stats stats : snapshot.values()) {
+            assert stats.getInvocations() == results.size();
+            long values = results.stream().mapToLong(r -> r.containsKey(stats.getName()) ? r.get(stats.getName()).size() : 0).sum();
+            long empty = results.stream().filter(r -> !r.containsKey(stats.getName())).count();
+            assert stats.getValues() == values : stats;
+            assert stats.getEmptyResults() == empty : stats;
+            assert stats.getNanos() > 0;
+        }
+
+        jsonExtractionSpec.setExtractionListener(null);
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords()), (record, values) -> { });
+        assert metrics.snapshot().get("Title").getInvocations() == results.size();
+    }
+
+    @Test
+    public void testExtractWithResultStore() throws InvalidSpecException, IOException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        List<Map<String, List<String>>> expected = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords()), (record, values) -> expected.add(values));
+
+        Path path = temporaryFolder.newFile("results.ndjson").toPath();
+        try (ResultStore store = new ResultStore(path)) {
+            jsonExtractionSpec.setResultStore(store);
+            List<Map<String, List<String>>> first = new ArrayList<>();
+            jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords()), (record, values) -> first.add(values));
+            assert first.equals(expected);
+            assert store.size() == 4;
+        }
+
+        // the second run gets every record from the store without running the extractors
+        ExtractorMetrics metrics = new ExtractorMetrics();
+        jsonExtractionSpec.setExtractionListener(metrics);
+        try (ResultStore store = new ResultStore(path)) {
+            jsonExtractionSpec.setResultStore(store);
+            List<Map<String, List<String>>> second = new ArrayList<>();
+            jsonExtractionSpec.extractAll(testRecords(), (record, values) -> second.add(values));
+            assert second.equals(expected);
+            assert metrics.snapshot().isEmpty();
+
+            // a different specification doesn't use the stored results
+            JsonExtractionSpec otherSpec = new JsonExtractionSpec();
+            otherSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec.json"));
+            assert !otherSpec.getSpecHash().equals(jsonExtractionSpec.getSpecHash());
+            otherSpec.setResultStore(store);
+            otherSpec.setExtractionListener(metrics);
+            otherSpec.extractAll(new MarcStreamReader(testRecords()), (record, values) -> { });
+            assert metrics.snapshot().get("Title").getInvocations() == 4;
+        }
+    }
+
+    @Test
+    public void testReextractValues() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        // repeated names keep the last values extracted, so an edit to 245 reruns the 100a Title too
+        jsonExtractionSpec.loadExtractors("[{\"name\": \"Title\", \"fieldSpec\": \"245a\"}, {\"name\": \"Title\", \"fieldSpec\": \"100a\"}]");
+        List<Consumer<Record>> edits = Arrays.asList(
+                record -> { },
+                record -> {
+                    DataField subject = (DataField) record.getVariableField("650");
+                    if (subject != null) {
+                        subject.getSubfields().get(0).setData("Changed subject.");
+                    }
+                },
+                record -> record.removeVariableField(record.getVariableField("245")),
+                record -> {
+                    DataField title = (DataField) record.getVariableField("245");
+                    title.getSubfield('a').setData("Changed title");
+                },
+                record -> ((ControlField) record.getVariableField("008")).setData("800101s1999    nyu           000 0 fre d"),
+                record -> {
+                    // move the last field to the front
+                    List<DataField> dataFields = record.getDataFields();
+                    DataField last = dataFields.get(dataFields.size() - 1);
+                    dataFields.remove(last);
+                    dataFields.add(0, last);
+                });
+        for (int i = 0; i < edits.size(); i++) {
+            for (String file : ALL_RECORD_FILES) {
+                Record oldRecord = new MarcStreamReader(getClass().getResourceAsStream(file)).next();
+                Record newRecord = new MarcStreamReader(getClass().getResourceAsStream(file)).next();
+                edits.get(i).accept(newRecord);
+                Map<String, List<String>> previous = jsonExtractionSpec.extractValues(oldRecord);
+                Map<String, List<String>> expected = jsonExtractionSpec.extractValues(newRecord);
+                assert jsonExtractionSpec.reextractValues(previous, oldRecord, newRecord).equals(expected) : file + " edit " + i;
+            }
+        }
+
+        // only the extractors reading 6XX fields run after a subject changes
+        Record oldRecord = new MarcStreamReader(getClass().getResourceAsStream("/manufacturing_consent.marc")).next();
+        Record newRecord = new MarcStreamReader(getClass().getResourceAsStream("/manufacturing_consent.marc")).next();
+        edits.get(1).accept(newRecord);
+        ExtractorMetrics metrics = new ExtractorMetrics();
+        jsonExtractionSpec.setExtractionListener(metrics);
+        jsonExtractionSpec.reextractValues(jsonExtractionSpec.extractValues(oldRecord), oldRecord, newRecord);
+        assert metrics.snapshot().get("Title").getInvocations() == 3;
+        assert metrics.snapshot().get("Subject").getInvocations() == 2;
+        assert metrics.snapshot().get("SubjectHeading").getInvocations() == 2;
+        assert metrics.snapshot().get("SubjectPlace").getInvocations() == 2;
+        assert metrics.snapshot().get("Notes").getInvocations() == 1;
+    }
+
+    @Test
+    public void testExtractValuesIntoResult() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        // repeated names keep the last values extracted, as in the map
+        jsonExtractionSpec.loadExtractors("[{\"name\": \"Title\", \"fieldSpec\": \"246a\"}, {\"name\": \"Title\", \"fieldSpec\": \"999a\"}]");
+        ExtractionResult result = jsonExtractionSpec.newResult();
+        assert result.size() == 19;
+        assert result.getName(0).equals("Id");
+        for (String file : ALL_RECORD_FILES) {
+            MarcStreamReader reader = new MarcStreamReader(getClass().getResourceAsStream(file));
+            while (reader.hasNext()) {
+                Record record = reader.next();
+                Map<String, List<String>> expected = jsonExtractionSpec.extractValues(record);
+                jsonExtractionSpec.extractValues(record, result);
+                assert result.asMap().equals(expected) : file;
+                assert expected.equals(result.asMap()) : file;
+                assert result.getValues("Title").equals(expected.get("Title"));
+                assert result.getValues("Id").equals(result.getValues(result.getOrdinal("Id")));
+            }
+        }
+
+        jsonExtractionSpec.loadExtractors("[{\"name\": \"More\", \"fieldSpec\": \"500a\"}]");
+        try {
+            jsonExtractionSpec.extractValues(new MarcStreamReader(testRecords()).next(), result);
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected, the result was made for the old extractors
+        }
+    }
+
+    @Test
+    public void testValuePool() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors("[" +
+                "{\"name\": \"Publisher\", \"fieldSpec\": \"260b:264b\", \"dedupValues\": true}," +
+                "{\"name\": \"Title\", \"fieldSpec\": \"245a\"}" +
+                "]");
+        Map<String, List<String>> first = jsonExtractionSpec.extractValues(new MarcStreamReader(testRecords()).next());
+        Map<String, List<String>> second = jsonExtractionSpec.extractValues(new MarcStreamReader(testRecords()).next());
+        assert first.get("Publisher").get(0) != second.get("Publisher").get(0);
+
+        ValuePool pool = new ValuePool(1000);
+        jsonExtractionSpec.setValuePool(pool);
+        Map<String, List<String>> pooledFirst = jsonExtractionSpec.extractValues(new MarcStreamReader(testRecords()).next());
+        Map<String, List<String>> pooledSecond = jsonExtractionSpec.extractValues(new MarcStreamReader(testRecords()).next());
+        assert pooledFirst.equals(first) && pooledSecond.equals(second);
+        assert pooledFirst.get("Publisher").get(0) == pooledSecond.get("Publisher").get(0);
+        // only the extractor with dedupValues uses the pool
+        assert pooledFirst.get("Title").get(0) != pooledSecond.get("Title").get(0);
+        assert pool.size() == first.get("Publisher").size();
+
+        // a full pool starts again
+        ValuePool small = new ValuePool(2);
+        String a = small.canonicalize(new String("a"));
+        assert small.canonicalize(new String("a")) == a;
+        small.canonicalize("b");
+        small.canonicalize("c");
+        assert small.size() == 1;
+        assert small.canonicalize(new String("a")) != a;
+    }
+
     @Test
     public void testLoadExtractors() throws InvalidSpecException {
         JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
@@ -108,4 +489,25 @@ public class JsonExtractionSpecTest {
         JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
         jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-invalid.json"));
     }
-}
\ No newline at end of file
+
+    private static final String[] ALL_RECORD_FILES = {
+            "/manufacturing_consent.marc", "/558505.marc", "/55580.marc", "/15572040.marc",
+            "/11040744.mrc", "/11749433.mrc", "/12532681.marc", "/15593592.marc"
+    };
+
+    private InputStream testRecords() {
+        return testRecords(1);
+    }
+
+    private InputStream testRecords(int copies) {
+        List<InputStream> streams = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            streams.addAll(Arrays.asList(
+                    getClass().getResourceAsStream("/manufacturing_consent.marc"),
+                    getClass().getResourceAsStream("/558505.marc"),
+                    getClass().getResourceAsStream("/55580.marc"),
+                    getClass().getResourceAsStream("/15572040.marc")));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+}
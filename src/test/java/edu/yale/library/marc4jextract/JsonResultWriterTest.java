@@ -0,0 +1,100 @@
+package edu.yale.library.marc4jextract;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.marc4j.MarcStreamReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class JsonResultWriterTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testNdjson() throws InvalidSpecException, IOException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        List<Map<String, List<String>>> expected = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(getClass().getResourceAsStream("/manufacturing_consent.marc")), (record, values) -> expected.add(values));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonResultWriter writer = JsonResultWriter.ndjson(out)) {
+            writer.setIdField("id");
+            writer.setSingleValuedFields(Collections.singletonList("SortTitle"));
+            jsonExtractionSpec.extractAll(new MarcStreamReader(getClass().getResourceAsStream("/manufacturing_consent.marc")), writer);
+        }
+        String[] lines = out.toString(StandardCharsets.UTF_8.name()).split("\n");
+        assert lines.length == expected.size();
+        assert lines[0].startsWith("{\"id\":\"2710183\"");
+        JsonNode document = mapper.readTree(lines[0]);
+        assert document.get("id").asText().equals("2710183");
+        assert document.get("SortTitle").isTextual();
+        assert document.get("SortTitle").asText().equals(expected.get(0).get("SortTitle").get(0));
+        List<String> titles = new ArrayList<>();
+        document.get("Title").forEach(node -> titles.add(node.asText()));
+        assert titles.equals(expected.get(0).get("Title"));
+        assert document.size() == expected.get(0).size() + 1;
+
+        // the same document from a reusable result
+        ExtractionResult result = jsonExtractionSpec.newResult();
+        jsonExtractionSpec.extractValues(new MarcStreamReader(getClass().getResourceAsStream("/manufacturing_consent.marc")).next(), result);
+        ByteArrayOutputStream fromResult = new ByteArrayOutputStream();
+        try (JsonResultWriter writer = JsonResultWriter.ndjson(fromResult)) {
+            writer.setIdField("id");
+            writer.setSingleValuedFields(Collections.singletonList("SortTitle"));
+            writer.write("2710183", result);
+        }
+        assert mapper.readTree(fromResult.toByteArray()).equals(document);
+    }
+
+    @Test
+    public void testSolrBatches() throws InvalidSpecException, IOException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec.json"));
+        List<ByteArrayOutputStream> batches = new ArrayList<>();
+        try (JsonResultWriter writer = JsonResultWriter.solrBatches(() -> {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            batches.add(batch);
+            return batch;
+        }, 3)) {
+            writer.setIdField("id");
+            for (String file : Arrays.asList("/manufacturing_consent.marc", "/558505.marc", "/55580.marc", "/15572040.marc", "/15593592.marc")) {
+                jsonExtractionSpec.extractAll(new MarcStreamReader(getClass().getResourceAsStream(file)), writer);
+            }
+        }
+        assert batches.size() == 2;
+        JsonNode first = mapper.readTree(batches.get(0).toByteArray());
+        JsonNode second = mapper.readTree(batches.get(1).toByteArray());
+        assert first.isArray() && first.size() == 3;
+        assert second.isArray() && second.size() == 2;
+        assert first.get(0).get("id").asText().equals("2710183");
+        assert first.get(0).get("Creator").get(0).asText().equals("Herman, Edward S.");
+    }
+
+    @Test
+    public void testIdFieldNotRepeated() throws IOException {
+        Map<String, List<String>> values = new HashMap<>();
+        values.put("id", Collections.singletonList("from an extractor"));
+        values.put("Title", Collections.singletonList("Manufacturing consent"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonResultWriter writer = JsonResultWriter.ndjson(out)) {
+            writer.setIdField("id");
+            writer.write("2710183", values);
+            // without a control number the extracted id is kept
+            writer.write(null, values);
+        }
+        String[] lines = out.toString(StandardCharsets.UTF_8.name()).split("\n");
+        assert lines[0].indexOf("\"id\"") == lines[0].lastIndexOf("\"id\"");
+        assert mapper.readTree(lines[0]).get("id").asText().equals("2710183");
+        assert mapper.readTree(lines[1]).get("id").get(0).asText().equals("from an extractor");
+    }
+}
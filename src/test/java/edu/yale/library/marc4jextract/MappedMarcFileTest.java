@@ -0,0 +1,74 @@
+package edu.yale.library.marc4jextract;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.marc4j.MarcException;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MappedMarcFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSplitAcrossWindows() throws IOException, InvalidSpecException {
+        File file = testFile();
+        List<String> expected = new ArrayList<>();
+        MarcStreamReader reader = new MarcStreamReader(Files.newInputStream(file.toPath()));
+        while (reader.hasNext()) {
+            expected.add(reader.next().getControlNumber());
+        }
+
+        // small windows so the records are spread over several mapped buffers
+        MappedMarcFile mappedMarcFile = new MappedMarcFile(file.toPath(), 16 * 1024);
+        assert mappedMarcFile.getRecordCount() == expected.size();
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors("[{\"name\": \"Id\", \"fieldSpec\": \"001\"}]");
+        List<MappedMarcFile.Range> ranges = mappedMarcFile.split(3);
+        assert ranges.size() > expected.size() / 3;
+        List<String> controlNumbers = new ArrayList<>();
+        for (MappedMarcFile.Range range : ranges) {
+            assert range.size() > 0 && range.size() <= 3;
+            RawRecordParser parser = jsonExtractionSpec.newRawRecordParser();
+            for (int i = 0; i < range.size(); i++) {
+                Record record = parser.parse(range.getBuffer(), range.getOffset(i));
+                controlNumbers.add(record.getControlNumber());
+            }
+        }
+        assert controlNumbers.equals(expected);
+    }
+
+    @Test(expected = MarcException.class)
+    public void testTruncatedFile() throws IOException {
+        File file = testFile();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 10));
+        new MappedMarcFile(file.toPath());
+    }
+
+    private File testFile() throws IOException {
+        List<InputStream> streams = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            for (String name : Arrays.asList("/manufacturing_consent.marc", "/558505.marc", "/55580.marc", "/15572040.marc",
+                    "/11040744.mrc", "/11749433.mrc", "/12532681.marc", "/15593592.marc")) {
+                streams.add(getClass().getResourceAsStream(name));
+            }
+        }
+        File file = temporaryFolder.newFile("records.mrc");
+        Files.copy(new SequenceInputStream(Collections.enumeration(streams)), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+}
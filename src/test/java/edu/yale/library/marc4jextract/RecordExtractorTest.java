@@ -4,8 +4,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.marc4j.MarcReader;
 import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.MarcFactory;
 import org.marc4j.marc.Record;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
@@ -135,6 +139,105 @@ public class RecordExtractorTest {
     }
 
 
+    @Test
+    public void extractValuesSubfieldOrderTest() throws InvalidSpecException {
+        List<Extractor> extractors = new ArrayList<>();
+        extractors.add(new Extractor("245ba", "245ba", ScriptInclusion.NONE, false, null, "|", null, false).compile());
+        extractors.add(new Extractor("245baKeep", "245ba", ScriptInclusion.NONE, false, null, "|", null, true).compile());
+        extractors.add(new Extractor("245b", "245b", ScriptInclusion.BOTH, false, null, "|").compile());
+        extractors.add(new Extractor("245", "245", ScriptInclusion.NONE, false, null, "|").compile());
+        RecordExtractor recordExtractor = new RecordExtractor(record);
+        Map<String, List<String>> result = recordExtractor.extractValues(extractors);
+        assert result.get("245ba").equals(Arrays.asList("saiten to gyōji no subete /|Yasukuni Jinja :"));
+        assert result.get("245baKeep").equals(Arrays.asList("Yasukuni Jinja :|saiten to gyōji no subete /"));
+        assert result.get("245b").equals(Arrays.asList("saiten to gyōji no subete /", "祭典と行事のすべて /"));
+        assert result.get("245").equals(Arrays.asList("Yasukuni Jinja :|saiten to gyōji no subete /|[henshū Yasukuni Jinja Shamusho]."));
+    }
+
+    @Test
+    public void extractionPlanTest() throws InvalidSpecException {
+        List<Extractor> extractors = new ArrayList<>();
+        extractors.add(new Extractor("710ab", "710ab", ScriptInclusion.NONE, true, null, " ").compile());
+        extractors.add(new Extractor("date", null, null, false, null, null, "dateExtractor").compile());
+        ExtractionPlan plan = new ExtractionPlan(extractors);
+        assert plan.isDataFieldTag("710");
+        assert plan.isDataFieldTag("264");
+        assert plan.isDataFieldTag("880");
+        assert !plan.isDataFieldTag("245");
+        assert plan.isControlFieldDependent();
+        Map<String, List<String>> result = new RecordExtractor(record).extractValues(plan);
+        assert result.get("710ab").get(0).equals("Yasukuni Jinja (Tokyo, Japan). Shamusho");
+        assert result.get("date").get(0).equals("1986");
+    }
+
+    @Test
+    public void tagPatternPlanTest() throws InvalidSpecException {
+        List<Extractor> extractors = new ArrayList<>();
+        extractors.add(new Extractor("subjects", "6XXa:0XXa", ScriptInclusion.BOTH, true, null, " ").compile());
+        ExtractionPlan plan = new ExtractionPlan(extractors);
+        // one component for each pattern, plus the control fields 000-009 of 0XX
+        assert extractors.get(0).extractorComponentList.size() == 12;
+        assert plan.isDataFieldTag("650");
+        assert plan.isDataFieldTag("020");
+        assert !plan.isDataFieldTag("710");
+        assert !plan.isDataFieldTag("6XX");
+        assert plan.isDataFieldTag("600") && plan.isDataFieldTag("699") && !plan.isDataFieldTag("700");
+        assert plan.isControlFieldDependent();
+        // re-extraction reuses the plan for the same subset of extractors
+        extractors.add(new Extractor("710ab", "710ab", ScriptInclusion.NONE, true, null, " ").compile());
+        plan = new ExtractionPlan(extractors);
+        BitSet second = new BitSet();
+        second.set(1);
+        ExtractionPlan subPlan = plan.subPlan(second);
+        assert subPlan.getExtractors().equals(Arrays.asList(extractors.get(1)));
+        assert plan.subPlan((BitSet) second.clone()) == subPlan;
+        assert subPlan.isDataFieldTag("710") && !subPlan.isDataFieldTag("650");
+    }
+
+    @Test
+    public void sharedComponentsTest() throws InvalidSpecException {
+        List<Extractor> extractors = new ArrayList<>();
+        extractors.add(new Extractor("display", "710ab:245a", ScriptInclusion.BOTH, false, null, " ").compile());
+        extractors.add(new Extractor("sort", "710ab", ScriptInclusion.BOTH, true, "(\\w+).*", " ").compile());
+        extractors.add(new Extractor("facet", "710ab", ScriptInclusion.BOTH, true, null, " ").compile());
+        extractors.add(new Extractor("other", "710ab", ScriptInclusion.NONE, true, null, " ").compile());
+        ExtractionPlan plan = new ExtractionPlan(extractors);
+        // only the first three extract the same raw values
+        assert plan.getSharedComponentCount() == 1;
+        assert plan.getComponentSlots(0)[0] == 0 && plan.getComponentSlots(0)[1] == -1;
+        assert plan.getComponentSlots(3)[0] == -1;
+        Map<String, List<String>> shared = new RecordExtractor(record).extractValues(plan);
+        assert shared.get("sort").get(0).equals("Yasukuni");
+        for (Extractor extractor : extractors) {
+            Map<String, List<String>> alone = new RecordExtractor(record).extractValues(Arrays.asList(extractor));
+            assert alone.get(extractor.getName()).equals(shared.get(extractor.getName()));
+        }
+    }
+
+    @Test
+    public void lazyIndexingTest() throws InvalidSpecException {
+        // an 880 whose linkage is too short to name a tag is skipped
+        DataField broken880 = MarcFactory.newInstance().newDataField("880", ' ', ' ');
+        broken880.addSubfield(MarcFactory.newInstance().newSubfield('6', "24"));
+        broken880.addSubfield(MarcFactory.newInstance().newSubfield('a', "Broken"));
+        record.addVariableField(broken880);
+        List<Extractor> extractors = new ArrayList<>();
+        extractors.add(new Extractor("245a", "245a", ScriptInclusion.NONE, true, null, " ").compile());
+        extractors.add(new Extractor("008", "008[7-10]", ScriptInclusion.NONE, false, null, " ").compile());
+        RecordExtractor recordExtractor = new RecordExtractor(record);
+        Map<String, List<String>> result = recordExtractor.extractValues(extractors);
+        assert result.get("245a").get(0).equals("Yasukuni Jinja");
+        assert result.get("008").get(0).equals("1986");
+
+        extractors.add(new Extractor("245a880", "245a", ScriptInclusion.ONLY, true, null, " ").compile());
+        extractors.add(new Extractor("24Xa", "24Xa", ScriptInclusion.BOTH, true, null, " ").compile());
+        Map<String, List<String>> with880s = recordExtractor.extractValues(extractors);
+        assert with880s.get("245a880").size() == 1 && !with880s.get("245a880").contains("Broken");
+        assert !with880s.get("24Xa").contains("Broken");
+        assert with880s.get("245a").equals(result.get("245a"));
+    }
+
+
     private Record loadTestRecord() {
         // mocking marc records is probably not worth the trouble.
         MarcReader marcReader = new MarcStreamReader( this.getClass().getResourceAsStream("/558505.marc"));
@@ -0,0 +1,99 @@
+package edu.yale.library.marc4jextract;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ResultStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        Path path = temporaryFolder.newFile("results.ndjson").toPath();
+        Map<String, List<String>> values = new HashMap<>();
+        values.put("Title", Arrays.asList("Manufacturing consent", "موافقة"));
+        try (ResultStore store = new ResultStore(path)) {
+            store.put("1", "20080307152200.0", "spec", values);
+            store.put("2", "20080307152200.0", "spec", Collections.emptyMap());
+            assert store.get("1", "20080307152200.0", "spec").equals(values);
+            assert store.get("1", "20990101000000.0", "spec") == null;
+            assert store.get("1", "20080307152200.0", "other") == null;
+            assert store.get("3", "20080307152200.0", "spec") == null;
+        }
+        try (ResultStore store = new ResultStore(path)) {
+            assert store.size() == 2;
+            assert store.get("1", "20080307152200.0", "spec").equals(values);
+            assert store.get("2", "20080307152200.0", "spec").isEmpty();
+        }
+    }
+
+    @Test
+    public void testIncompleteLineAndCompact() throws IOException {
+        Path path = temporaryFolder.newFile("results.ndjson").toPath();
+        try (ResultStore store = new ResultStore(path)) {
+            store.put("1", "a", "spec", Collections.singletonMap("Title", Collections.singletonList("first")));
+            store.put("1", "b", "spec", Collections.singletonMap("Title", Collections.singletonList("second")));
+        }
+        // as if the process died while writing
+        Files.write(path, "{\"id\":\"2\",\"vers".getBytes(), StandardOpenOption.APPEND);
+        long length = Files.size(path);
+        try (ResultStore store = new ResultStore(path)) {
+            assert store.size() == 1;
+            assert Files.size(path) < length;
+            assert store.get("1", "a", "spec") == null;
+            assert store.get("1", "b", "spec").get("Title").get(0).equals("second");
+            store.compact();
+            assert store.get("1", "b", "spec").get("Title").get(0).equals("second");
+            store.put("2", "a", "spec", Collections.emptyMap());
+        }
+        assert Files.readAllLines(path).size() == 2;
+    }
+
+    @Test
+    public void testConcurrentPutAndGet() throws IOException, InterruptedException {
+        Path path = temporaryFolder.newFile("results.ndjson").toPath();
+        try (ResultStore store = new ResultStore(path)) {
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            for (int t = 0; t < 4; t++) {
+                String prefix = "t" + t + "-";
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            store.put(prefix + i, "v", "spec", Collections.singletonMap("Title", Collections.singletonList(prefix + i)));
+                            assert store.get(prefix + i, "v", "spec").get("Title").get(0).equals(prefix + i);
+                            assert store.get(prefix + i, "w", "spec") == null;
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assert failures.isEmpty() : failures;
+            assert store.size() == 2000;
+        }
+        try (ResultStore store = new ResultStore(path)) {
+            assert store.size() == 2000;
+            assert store.get("t3-499", "v", "spec").get("Title").get(0).equals("t3-499");
+        }
+    }
+}
@@ -2,6 +2,7 @@ package edu.yale.library.marc4jextract;
 
 import org.junit.Test;
 import java.util.Arrays;
+import java.util.regex.Pattern;
 
 public class StringFormatterTest {
 
@@ -26,4 +27,56 @@ public class StringFormatterTest {
             assert (StringFormatter.trimPunctuation(par[0])).equals(par[1]);
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTrimPunctuationUnchangedIsSameInstance() {
+        String s = "Manufacturing consent";
+        assert StringFormatter.trimPunctuation(s) == s;
+    }
+
+    @Test
+    public void testTrimPunctuationMatchesRegexVersion() {
+        // every string up to 5 characters long from characters that matter to the patterns,
+        // including line terminators and the halves of a surrogate pair
+        assertMatchesRegexVersion(new char[]{' ', ',', '/', '.', '[', ']', 'a', '_', '1', '民', '\n', '\r', '\t', '\uD840', '\uDC00'}, 5);
+        // and shorter strings from the remaining punctuation and line terminators
+        assertMatchesRegexVersion(new char[]{' ', ';', ':', '.', ']', 'é', 'Z', '\n', '\r', '\u0085', '\u2028', '\u2029', '-'}, 4);
+    }
+
+    private void assertMatchesRegexVersion(char[] alphabet, int maxLength) {
+        char[] chars = new char[maxLength];
+        for (int length = 0; length <= maxLength; length++) {
+            int[] ix = new int[length];
+            while (true) {
+                for (int i = 0; i < length; i++) {
+                    chars[i] = alphabet[ix[i]];
+                }
+                String s = new String(chars, 0, length);
+                String expected = regexTrimPunctuation(s);
+                String actual = StringFormatter.trimPunctuation(s);
+                if (!expected.equals(actual)) {
+                    throw new AssertionError("trimPunctuation(" + Arrays.toString(s.toCharArray()) + ") was \"" + actual + "\" expected \"" + expected + "\"");
+                }
+                int i = length - 1;
+                while (i >= 0 && ++ix[i] == alphabet.length) {
+                    ix[i--] = 0;
+                }
+                if (i < 0) break;
+            }
+        }
+    }
+
+    private static final Pattern trailingPunc = Pattern.compile(" *[,\\/;:] *\\Z");
+    private static final Pattern trailingPeriod = Pattern.compile("( *[\\p{IsAlphabetic},\\w]{3,})\\.\\Z");
+    private static final Pattern trailingSquareBracket = Pattern.compile("\\A\\[?([^\\[\\]]+)\\]?\\Z");
+
+    // the original regular expression implementation of trimPunctuation
+    private static String regexTrimPunctuation(String s) {
+        s = trailingPunc.matcher(s).replaceAll("");
+        s = trailingPeriod.matcher(s).replaceAll("$1");
+        s = trailingSquareBracket.matcher(s).replaceAll("$1");
+        s = s.trim();
+        if (s.equals(".")) s = "";
+        return s;
+    }
+}
@@ -0,0 +1,174 @@
+package edu.yale.library.marc4jextract;
+
+import org.junit.Test;
+import org.marc4j.MarcReader;
+import org.marc4j.MarcStreamReader;
+import org.marc4j.marc.Record;
+
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExtractionPublisherTest {
+
+    @Test
+    public void testPublishesOnDemand() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        List<Map<String, List<String>>> expected = new ArrayList<>();
+        jsonExtractionSpec.extractAll(new MarcStreamReader(testRecords(5)), (record, values) -> expected.add(values));
+
+        AtomicInteger read = new AtomicInteger();
+        MarcReader reader = new MarcStreamReader(testRecords(5));
+        MarcReader countingReader = new MarcReader() {
+            @Override
+            public boolean hasNext() {
+                return reader.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                read.incrementAndGet();
+                return reader.next();
+            }
+        };
+        // run on the calling thread so reads can be counted between requests
+        ExtractionPublisher publisher = new ExtractionPublisher(jsonExtractionSpec, countingReader, 2, Runnable::run);
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        assert read.get() == 2; // only the prefetch
+        subscriber.subscription.request(3);
+        assert subscriber.values.size() == 3;
+        assert read.get() == 5;
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assert subscriber.values.equals(expected);
+        assert subscriber.completed;
+        assert subscriber.error == null;
+
+        // a second subscriber can't read the same records
+        TestSubscriber second = new TestSubscriber();
+        publisher.subscribe(second);
+        assert second.error instanceof IllegalStateException;
+    }
+
+    @Test
+    public void testCancel() throws InvalidSpecException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        ExtractionPublisher publisher = new ExtractionPublisher(jsonExtractionSpec, new MarcStreamReader(testRecords(5)), 0, Runnable::run);
+        TestSubscriber subscriber = new TestSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(10);
+        assert subscriber.values.size() == 1;
+        assert !subscriber.completed;
+
+        subscriber = new TestSubscriber();
+        new ExtractionPublisher(jsonExtractionSpec, new MarcStreamReader(testRecords(1)), 0, Runnable::run).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assert subscriber.error instanceof IllegalArgumentException;
+    }
+
+    @Test
+    public void testOwnThread() throws InvalidSpecException, InterruptedException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        CountDownLatch completed = new CountDownLatch(1);
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        TestSubscriber subscriber = new TestSubscriber() {
+            @Override
+            public void onNext(ExtractionPublisher.Result item) {
+                threads.add(Thread.currentThread().getName());
+                super.onNext(item);
+            }
+
+            @Override
+            public void onComplete() {
+                super.onComplete();
+                completed.countDown();
+            }
+        };
+        new ExtractionPublisher(jsonExtractionSpec, new MarcStreamReader(testRecords(2)), 4).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assert completed.await(30, TimeUnit.SECONDS);
+        assert subscriber.values.size() == 4;
+        assert threads.stream().allMatch("marc4jextract-publisher"::equals);
+        // the thread stops once the subscription is done
+        for (int i = 0; i < 100 && publisherThreadAlive(); i++) {
+            Thread.sleep(50);
+        }
+        assert !publisherThreadAlive();
+    }
+
+    @Test
+    public void testSubscriberThrows() throws InvalidSpecException, InterruptedException {
+        JsonExtractionSpec jsonExtractionSpec = new JsonExtractionSpec();
+        jsonExtractionSpec.loadExtractors(getClass().getResourceAsStream("/test-extract-spec-full.json"));
+        TestSubscriber subscriber = new TestSubscriber() {
+            @Override
+            public void onNext(ExtractionPublisher.Result item) {
+                super.onNext(item);
+                throw new IllegalStateException("subscriber failed");
+            }
+        };
+        new ExtractionPublisher(jsonExtractionSpec, new MarcStreamReader(testRecords(2)), 4).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        // the subscription is cancelled, which stops its thread
+        for (int i = 0; i < 100 && publisherThreadAlive(); i++) {
+            Thread.sleep(50);
+        }
+        assert !publisherThreadAlive();
+        subscriber.subscription.request(1);
+        assert subscriber.values.size() == 1;
+        assert !subscriber.completed;
+        assert subscriber.error == null;
+    }
+
+    private static boolean publisherThreadAlive() {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("marc4jextract-publisher"));
+    }
+
+    private static class TestSubscriber implements Flow.Subscriber<ExtractionPublisher.Result> {
+        private Flow.Subscription subscription;
+        private final List<Map<String, List<String>>> values = new ArrayList<>();
+        private boolean completed = false;
+        private Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ExtractionPublisher.Result item) {
+            values.add(item.getValues());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private InputStream testRecords(int copies) {
+        List<InputStream> streams = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            streams.add(getClass().getResourceAsStream("/manufacturing_consent.marc"));
+            streams.add(getClass().getResourceAsStream("/558505.marc"));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+}